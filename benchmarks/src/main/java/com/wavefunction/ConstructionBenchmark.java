@@ -0,0 +1,54 @@
+package com.wavefunction;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Construction of an OverlappingModel from its sample: pattern extraction,
+ * symmetries and the propagator, over N and symmetry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConstructionBenchmark {
+  @Param("citytemplate.png")
+  String sample;
+
+  @Param({ "2", "3", "4" })
+  int N;
+
+  @Param({ "1", "2", "8" })
+  int symmetry;
+
+  private BufferedImage image;
+
+  @Setup
+  public void setup() throws IOException {
+    this.image = ImageIO.read(new File(this.sample));
+  }
+
+  @Benchmark
+  public void overlappingConstruction(Blackhole blackhole) {
+    blackhole.consume(
+      new OverlappingModel(this.image, this.N, 48, 48, true, false, this.symmetry, 0)
+    );
+  }
+}
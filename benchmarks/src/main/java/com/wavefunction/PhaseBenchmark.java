@@ -0,0 +1,98 @@
+package com.wavefunction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The separate phases of a run: init(), Clear(), observe/propagate and
+ * graphics(), for overlapping models of the sample and for tileset subsets.
+ *
+ * model is "overlapping" followed by N, or the name of a subset of the knot
+ * tiles, which are read from ./knot like Main does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PhaseBenchmark {
+  @Param("citytemplate.png")
+  String sample;
+
+  @Param({ "overlapping2", "overlapping3", "Standard", "Dense", "Fabric" })
+  String model;
+
+  @Param({ "32", "64" })
+  int size;
+
+  private Model instance;
+  private int seed;
+
+  @Setup
+  public void setup() throws IOException {
+    if (this.model.startsWith("overlapping")) this.instance =
+      new OverlappingModel(
+        ImageIO.read(new File(this.sample)),
+        Integer.parseInt(this.model.substring("overlapping".length())),
+        this.size,
+        this.size,
+        true,
+        true,
+        8,
+        0
+      ); else this.instance =
+      Main.loadTiledModel(this.model, this.size, this.size, true);
+
+    // Leaves a finished wave for graphics() and allocated arrays for Clear().
+    for (int seed = 0; seed < 100 && !this.instance.run(seed, 0); seed++);
+  }
+
+  /**
+   * Starts the run that observePropagate times, outside of the timing.
+   */
+  @State(Scope.Thread)
+  public static class Run {
+    @Setup(Level.Invocation)
+    public void begin(PhaseBenchmark phases) {
+      phases.instance.begin(phases.seed++);
+    }
+  }
+
+  @Benchmark
+  public void init(Blackhole blackhole) {
+    this.instance.init();
+    blackhole.consume(this.instance.wave);
+  }
+
+  @Benchmark
+  public void clear(Blackhole blackhole) {
+    this.instance.Clear();
+    blackhole.consume(this.instance.wave);
+  }
+
+  @Benchmark
+  public void observePropagate(Run run, Blackhole blackhole) {
+    blackhole.consume(this.instance.resume(0, null));
+  }
+
+  @Benchmark
+  public void graphics(Blackhole blackhole) {
+    blackhole.consume(this.instance.graphics());
+  }
+}
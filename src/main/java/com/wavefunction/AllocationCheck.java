@@ -0,0 +1,81 @@
+package com.wavefunction;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.imageio.ImageIO;
+
+/**
+ * Regression check that observe/ban/propagate allocate nothing once a model
+ * is set up.
+ *
+ * Every model is warmed up, then the bytes allocated by run() over a few
+ * seeds are read from ThreadMXBean.getThreadAllocatedBytes. Each run may
+ * allocate its Random and observed array, RUN_BYTES plus 4 bytes per cell;
+ * the rest is divided by the number of observations of those runs, counted by
+ * running the same seeds again with SolverMetrics. An object per ban or per
+ * observation goes far past MAX_BYTES_PER_OBSERVATION.
+ *
+ * Usage: AllocationCheck [sample image]. The tiled model reads the knot tiles
+ * from ./knot like Main does. Exits with status 1 if a model allocates more
+ * than MAX_BYTES_PER_OBSERVATION.
+ */
+public class AllocationCheck {
+  static final double MAX_BYTES_PER_OBSERVATION = 1;
+  static final int RUN_BYTES = 256;
+  static final int WARMUP_RUNS = 20;
+  static final int MEASURED_RUNS = 10;
+
+  public static void main(String[] args) throws IOException {
+    String sample = args.length > 0 ? args[0] : "citytemplate.png";
+    BufferedImage image = ImageIO.read(new File(sample));
+
+    boolean ok = AllocationCheck.check(
+      "overlapping",
+      new OverlappingModel(image, 3, 48, 48, true, true, 8, 0)
+    );
+    ok &= AllocationCheck.check(
+      "tiled",
+      Main.loadTiledModel("Standard", 64, 64, true)
+    );
+    System.exit(ok ? 0 : 1);
+  }
+
+  /**
+   * Measures the bytes model allocates per observation and prints them.
+   * @return false if they exceed MAX_BYTES_PER_OBSERVATION.
+   */
+  static boolean check(String name, Model model) {
+    com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+
+    for (int seed = 0; seed < WARMUP_RUNS; seed++) model.run(seed, 0);
+
+    long before = threads.getThreadAllocatedBytes(thread);
+    for (int seed = 0; seed < MEASURED_RUNS; seed++) model.run(seed, 0);
+    long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+    SolverMetrics metrics = new SolverMetrics();
+    model.setMetrics(metrics);
+    for (int seed = 0; seed < MEASURED_RUNS; seed++) model.run(seed, 0);
+    model.setMetrics(null);
+    long observations = metrics.snapshot().observations;
+
+    long allowed = MEASURED_RUNS * (RUN_BYTES + 4L * model.FMX * model.FMY);
+    double perObservation =
+      (double) Math.max(0, allocated - allowed) / Math.max(1, observations);
+    boolean ok = perObservation <= MAX_BYTES_PER_OBSERVATION;
+    System.out.println(String.format(
+      "%-12s %d bytes in %d runs of %d observations, %.2f bytes/observation: %s",
+      name,
+      allocated,
+      MEASURED_RUNS,
+      observations,
+      perObservation,
+      ok ? "ok" : "FAILED, bound is " + MAX_BYTES_PER_OBSERVATION
+    ));
+    return ok;
+  }
+}
@@ -0,0 +1,105 @@
+package com.wavefunction;
+
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+
+/**
+ * Runs many seeds of the same rules on a caller-provided executor and hands
+ * back every run as soon as it finishes, in completion order.
+ * Every run gets its own forked model, which shares the immutable ruleset of
+ * the rules model, so one batch (or several) can use the same rules from any
+ * number of threads. submit() and take() themselves are meant to be called
+ * from a single thread.
+ */
+public class Batch<M extends Model> {
+
+  /**
+   * Outcome of one seed.
+   */
+  public static final class Result<M> {
+    public final int seed;
+    /** The solved model, or null if the run failed. */
+    public final M model;
+    /** The exception thrown by the run, or null. */
+    public final Throwable error;
+
+    Result(int seed, M model, Throwable error) {
+      this.seed = seed;
+      this.model = model;
+      this.error = error;
+    }
+
+    /**
+     * Whether the run finished without a contradiction.
+     */
+    public boolean solved() {
+      return this.model != null;
+    }
+  }
+
+  private final M rules;
+  private final int limit;
+  private final CompletionService<Result<M>> completion;
+  private int pending;
+
+  /**
+   * Creates a new batch.
+   * @param rules Model whose rules are shared by all the runs. It is not run itself.
+   * @param limit Maximum number of iterations of every run, 0 for no limit.
+   * @param executor Executes the runs. Not shut down by the batch.
+   */
+  public Batch(M rules, int limit, Executor executor) {
+    this.rules = rules;
+    this.limit = limit;
+    this.completion = new ExecutorCompletionService<Result<M>>(executor);
+  }
+
+  public Batch(M rules, Executor executor) {
+    this(rules, 0, executor);
+  }
+
+  /**
+   * Queues a run of the rules with seed.
+   */
+  @SuppressWarnings("unchecked")
+  public void submit(int seed) {
+    this.completion.submit(() -> {
+      try {
+        M model = (M) this.rules.fork();
+        return new Result<M>(seed, model.run(seed, this.limit) ? model : null, null);
+      } catch (RuntimeException | Error e) {
+        return new Result<M>(seed, null, e);
+      }
+    });
+    this.pending++;
+  }
+
+  public void submit(int[] seeds) {
+    for (int seed : seeds) this.submit(seed);
+  }
+
+  /**
+   * Number of submitted runs not yet returned by take().
+   */
+  public int pending() {
+    return this.pending;
+  }
+
+  /**
+   * Waits for the next run to finish and returns it.
+   * @return The result, or null if no run is pending.
+   */
+  public Result<M> take() throws InterruptedException {
+    if (this.pending == 0) return null;
+    Result<M> result;
+    try {
+      result = this.completion.take().get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    this.pending--;
+    return result;
+  }
+}
@@ -0,0 +1,396 @@
+package com.wavefunction;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Headless command line generator running every job of a manifest.
+ *
+ * Usage: BatchGenerator manifest.xml [-workers n] [-io n] [-out directory]
+ *
+ * The manifest lists jobs in the layout of the original WFC samples.xml:
+ *
+ * <pre>
+ * &lt;jobs&gt;
+ *   &lt;overlapping name="city" sample="citytemplate.png" N="3" symmetry="8"
+ *     width="48" height="48" periodic="true" periodicInput="true"
+ *     ground="0" seeds="0-99"/&gt;
+ *   &lt;simpletiled name="knots" tileset="knot" subset="Standard"
+ *     width="24" height="24" periodic="false" seeds="0-9,42"/&gt;
+ * &lt;/jobs&gt;
+ * </pre>
+ *
+ * seeds is a comma separated list of seeds and inclusive ranges, limit caps
+ * the observations of every run (0 for none). Paths are relative to the
+ * manifest.
+ *
+ * Runs of all jobs share one pool of worker threads, one per core by
+ * default, through a Batch per job. Solved outputs are rendered and written
+ * as "name seed.png" on a separate I/O pool. Seeds are submitted as earlier
+ * runs are taken, at most RUNS_PER_WORKER per worker at a time, and every run
+ * holds a permit of inFlight from its submission until its output is written,
+ * or until it is taken if it failed. So no more models than there are
+ * permits are ever in memory, and submission waits when the disk falls
+ * behind. A throughput summary per job type is printed at the end.
+ * The exit status is 1 if a job could not be set up or a run threw.
+ */
+public class BatchGenerator {
+  private static final int RUNS_PER_WORKER = 2;
+  private static final int WRITES_PER_IO_THREAD = 4;
+
+  /**
+   * Totals of one job, or of all jobs of a type.
+   */
+  static final class Tally {
+    int jobs, runs, solved, failed, errors;
+    long cells, nanos;
+    final AtomicInteger written = new AtomicInteger();
+    final AtomicInteger writeErrors = new AtomicInteger();
+
+    void add(Tally other) {
+      this.jobs += other.jobs;
+      this.runs += other.runs;
+      this.solved += other.solved;
+      this.failed += other.failed;
+      this.errors += other.errors;
+      this.cells += other.cells;
+      this.nanos += other.nanos;
+      this.written.addAndGet(other.written.get());
+      this.writeErrors.addAndGet(other.writeErrors.get());
+    }
+
+    @Override
+    public String toString() {
+      double seconds = Math.max(this.nanos, 1) / 1e9;
+      return String.format(
+        "%d jobs, %d runs: %d solved, %d contradictions, %d errors, " +
+        "%d written, %d write errors | %.2f s, %.1f runs/s, %.0f cells/s",
+        this.jobs,
+        this.runs,
+        this.solved,
+        this.failed,
+        this.errors,
+        this.written.get(),
+        this.writeErrors.get(),
+        seconds,
+        this.runs / seconds,
+        this.cells / seconds
+      );
+    }
+  }
+
+  private final ExecutorService workers;
+  private final ExecutorService io;
+  private final int window;
+  private final Semaphore inFlight;
+  private final Path output;
+  private final List<String> types = new ArrayList<String>();
+  private final List<Tally> tallies = new ArrayList<Tally>();
+  private boolean errors;
+
+  BatchGenerator(int workers, int ioThreads, Path output) {
+    this.workers = Executors.newFixedThreadPool(workers);
+    this.io = Executors.newFixedThreadPool(ioThreads);
+    this.window = RUNS_PER_WORKER * workers;
+    this.inFlight = new Semaphore(this.window + WRITES_PER_IO_THREAD * ioThreads);
+    this.output = output;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println(
+        "Usage: BatchGenerator manifest.xml [-workers n] [-io n] [-out directory]"
+      );
+      System.exit(2);
+    }
+
+    int workers = Runtime.getRuntime().availableProcessors();
+    int ioThreads = Math.max(1, workers / 4);
+    Path output = Paths.get("output");
+    for (int k = 1; k < args.length; k += 2) {
+      if (k + 1 == args.length) {
+        System.err.println("Missing value of option " + args[k]);
+        System.exit(2);
+      }
+
+      switch (args[k]) {
+        case "-workers":
+          workers = Integer.parseInt(args[k + 1]);
+          break;
+        case "-io":
+          ioThreads = Integer.parseInt(args[k + 1]);
+          break;
+        case "-out":
+          output = Paths.get(args[k + 1]);
+          break;
+        default:
+          System.err.println("Unknown option " + args[k]);
+          System.exit(2);
+      }
+    }
+
+    Files.createDirectories(output);
+    BatchGenerator generator = new BatchGenerator(workers, ioThreads, output);
+    boolean ok = generator.run(Paths.get(args[0]));
+    System.exit(ok ? 0 : 1);
+  }
+
+  /**
+   * Runs every job of a manifest and prints the summary.
+   * @return false if any job or run failed with an error.
+   */
+  boolean run(Path manifest) throws IOException, InterruptedException {
+    List<Element> jobs = BatchGenerator.jobs(manifest);
+    Path base = manifest.toAbsolutePath().getParent();
+    long start = System.nanoTime();
+
+    // The rules of the next job are built while the last runs of the current
+    // one finish. A job's time starts when the previous one is drained.
+    Batch<Model> current = jobs.isEmpty() ? null : this.batch(jobs.get(0), base);
+    long jobStart = start;
+    for (int k = 0; k < jobs.size(); k++) {
+      current = this.drain(
+        jobs.get(k),
+        current,
+        jobStart,
+        k + 1 < jobs.size() ? jobs.get(k + 1) : null,
+        base
+      );
+      jobStart = System.nanoTime();
+    }
+
+    this.workers.shutdown();
+    this.io.shutdown();
+    this.io.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+    Map<String, Tally> types = new LinkedHashMap<String, Tally>();
+    for (int k = 0; k < this.tallies.size(); k++) types
+      .computeIfAbsent(this.types.get(k), type -> new Tally())
+      .add(this.tallies.get(k));
+
+    Tally total = new Tally();
+    System.out.println();
+    for (Map.Entry<String, Tally> type : types.entrySet()) {
+      System.out.println(String.format("%-12s %s", type.getKey(), type.getValue()));
+      total.add(type.getValue());
+    }
+    total.nanos = System.nanoTime() - start;
+    System.out.println(String.format("%-12s %s", "total", total));
+
+    return !this.errors && total.errors == 0 && total.writeErrors.get() == 0;
+  }
+
+  private static List<Element> jobs(Path manifest) throws IOException {
+    NodeList nodes;
+    try {
+      nodes = DocumentBuilderFactory
+        .newInstance()
+        .newDocumentBuilder()
+        .parse(manifest.toFile())
+        .getDocumentElement()
+        .getChildNodes();
+    } catch (ParserConfigurationException | SAXException e) {
+      throw new IOException("Invalid manifest " + manifest, e);
+    }
+
+    List<Element> jobs = new ArrayList<Element>();
+    for (int k = 0; k < nodes.getLength(); k++) if (
+      nodes.item(k).getNodeType() == Node.ELEMENT_NODE
+    ) jobs.add((Element) nodes.item(k));
+    return jobs;
+  }
+
+  /**
+   * Builds the rules of a job.
+   * @return The batch of the job, or null if it could not be set up.
+   */
+  private Batch<Model> batch(Element job, Path base) {
+    Model rules;
+    try {
+      rules = BatchGenerator.rules(job, base);
+    } catch (IOException | RuntimeException e) {
+      System.err.println(BatchGenerator.name(job) + ": " + e);
+      this.errors = true;
+      return null;
+    }
+
+    int limit = Integer.parseInt(Main.getAttributeWithDefault(job, "limit", "0"));
+    return new Batch<Model>(rules, limit, this.workers);
+  }
+
+  private static Model rules(Element job, Path base) throws IOException {
+    boolean periodic = Boolean.parseBoolean(
+      Main.getAttributeWithDefault(job, "periodic", "false")
+    );
+
+    switch (job.getTagName()) {
+      case "overlapping": {
+        BufferedImage sample = ImageIO.read(
+          base.resolve(job.getAttribute("sample")).toFile()
+        );
+        if (sample == null) throw new IOException(
+          "Not an image: " + job.getAttribute("sample")
+        );
+        return new OverlappingModel(
+          sample,
+          Integer.parseInt(Main.getAttributeWithDefault(job, "N", "3")),
+          Integer.parseInt(Main.getAttributeWithDefault(job, "width", "48")),
+          Integer.parseInt(Main.getAttributeWithDefault(job, "height", "48")),
+          Boolean.parseBoolean(
+            Main.getAttributeWithDefault(job, "periodicInput", "true")
+          ),
+          periodic,
+          Integer.parseInt(Main.getAttributeWithDefault(job, "symmetry", "8")),
+          Integer.parseInt(Main.getAttributeWithDefault(job, "ground", "0"))
+        );
+      }
+      case "simpletiled": {
+        Tileset tileset = Tileset.load(base.resolve(job.getAttribute("tileset")));
+        return tileset.model(
+          job.hasAttribute("subset") ? job.getAttribute("subset") : null,
+          Integer.parseInt(Main.getAttributeWithDefault(job, "width", "24")),
+          Integer.parseInt(Main.getAttributeWithDefault(job, "height", "24")),
+          periodic
+        );
+      }
+      default:
+        throw new IllegalArgumentException("Unknown job type " + job.getTagName());
+    }
+  }
+
+  /**
+   * Parses a list of seeds and inclusive ranges, such as "0-9,42".
+   */
+  static int[] seeds(String list) {
+    List<Integer> seeds = new ArrayList<Integer>();
+    for (String part : list.split(",")) {
+      part = part.trim();
+      if (part.isEmpty()) continue;
+
+      int dash = part.indexOf('-', 1);
+      if (dash < 0) {
+        seeds.add(Integer.parseInt(part));
+        continue;
+      }
+
+      int from = Integer.parseInt(part.substring(0, dash).trim());
+      int to = Integer.parseInt(part.substring(dash + 1).trim());
+      for (int seed = from; seed <= to; seed++) seeds.add(seed);
+    }
+
+    int[] result = new int[seeds.size()];
+    for (int k = 0; k < result.length; k++) result[k] = seeds.get(k);
+    return result;
+  }
+
+  private static String name(Element job) {
+    if (job.hasAttribute("name")) return job.getAttribute("name");
+    if (job.hasAttribute("sample")) {
+      String sample = Paths.get(job.getAttribute("sample")).getFileName().toString();
+      int dot = sample.lastIndexOf('.');
+      return dot > 0 ? sample.substring(0, dot) : sample;
+    }
+    if (job.hasAttribute("subset")) return job.getAttribute("subset");
+    return job.getTagName();
+  }
+
+  /**
+   * Submits the seeds of a job as its earlier runs are taken, and hands
+   * solved runs to the I/O pool. Once every seed is submitted, builds the
+   * batch of the following job, if any.
+   * @return The batch of the following job, or null.
+   */
+  private Batch<Model> drain(
+    Element job,
+    Batch<Model> batch,
+    long start,
+    Element following,
+    Path base
+  ) throws InterruptedException {
+    Tally tally = new Tally();
+    tally.jobs = 1;
+    String name = BatchGenerator.name(job);
+    int[] seeds = batch == null
+      ? new int[0]
+      : BatchGenerator.seeds(Main.getAttributeWithDefault(job, "seeds", "0"));
+    Batch<Model> next = null;
+
+    for (int submitted = 0;;) {
+      if (submitted < seeds.length && batch.pending() < this.window) {
+        // Waits for writes only: fewer permits than window are held by
+        // runs not taken yet.
+        this.inFlight.acquire();
+        batch.submit(seeds[submitted++]);
+        continue;
+      }
+      if (submitted == seeds.length && following != null) {
+        next = this.batch(following, base);
+        following = null;
+      }
+
+      Batch.Result<Model> result = batch == null ? null : batch.take();
+      if (result == null) break;
+
+      tally.runs++;
+      if (result.error != null) {
+        this.inFlight.release();
+        tally.errors++;
+        System.err.println(name + " seed " + result.seed + ": " + result.error);
+        continue;
+      }
+      if (!result.solved()) {
+        this.inFlight.release();
+        tally.failed++;
+        continue;
+      }
+
+      Model model = result.model;
+      tally.solved++;
+      tally.cells += (long) model.FMX * model.FMY;
+      File file = this.output.resolve(name + " " + result.seed + ".png").toFile();
+      this.io.execute(() -> {
+        try {
+          ImageIO.write(model.graphics(), "png", file);
+          tally.written.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+          tally.writeErrors.incrementAndGet();
+          System.err.println(file + ": " + e);
+        } finally {
+          this.inFlight.release();
+        }
+      });
+    }
+
+    tally.nanos = System.nanoTime() - start;
+    System.out.println(String.format(
+      "%-12s %d runs, %d solved in %.2f s",
+      name,
+      tally.runs,
+      tally.solved,
+      tally.nanos / 1e9
+    ));
+    this.types.add(job.getTagName());
+    this.tallies.add(tally);
+    return next;
+  }
+}
@@ -0,0 +1,51 @@
+package com.wavefunction;
+
+/**
+ * Picks the next cell observed by a Model and keeps whatever bookkeeping
+ * that choice needs up to date. One instance belongs to one model.
+ * The model itself only maintains the wave, the counters and sumsOfOnes.
+ */
+interface CellSelector {
+  /**
+   * Rebuilds the bookkeeping from the current wave and sumsOfOnes. Called by
+   * Clear() once the wave has been filled, and when a run starts from the
+   * cached state of its Constraints.
+   */
+  void clear();
+
+  /**
+   * Called after pattern t was banned from cell i, which now allows amount
+   * patterns.
+   */
+  void banned(int i, int t, int amount);
+
+  /**
+   * Called when backtracking gives pattern t back to cell i, which now allows
+   * amount patterns.
+   */
+  void unbanned(int i, int t, int amount);
+
+  /**
+   * Per-cell arrays that clear() cannot rebuild exactly from the wave, such
+   * as running sums or random noise. Checkpoints save them, then restore
+   * them in place before calling restored().
+   */
+  default double[][] state() {
+    return new double[0][];
+  }
+
+  /**
+   * Rebuilds the bookkeeping like clear(), from the wave, sumsOfOnes and the
+   * arrays of state() restored by a checkpoint, without drawing anything
+   * from the model's random generator.
+   */
+  default void restored() {
+    this.clear();
+  }
+
+  /**
+   * Returns the next cell to observe, or -1 if every cell is decided.
+   * Only called while the model has no contradiction.
+   */
+  int next();
+}
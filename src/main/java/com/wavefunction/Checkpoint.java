@@ -0,0 +1,406 @@
+package com.wavefunction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Saves the state of a model's run between two steps to a file, so the run
+ * can go on later, in another process or on another machine, from exactly
+ * where it was: restore() then resuming gives the same output as a run that
+ * was never interrupted.
+ *
+ * The file is little-endian binary: a fixed header, then the wave, the
+ * compatible counters, sumsOfOnes and the cell selector's own arrays (the
+ * entropy sums and noise by default), each at a fixed offset, then a tail
+ * with the pending stack, the backtrack count and the random generator.
+ * The grid is split into bands of rows. A band is only rewritten when one
+ * of its cells, or of the cells next to it, changed since the last save, so
+ * saving a long run often is cheap.
+ *
+ * The header is marked incomplete during a save, so a file left half
+ * written by a crash is rejected by restore() rather than read. Backtracking
+ * history is not saved: a restored run can only backtrack decisions made
+ * after it was restored. With Heuristic.MINIMUM_REMAINING_VALUES the order
+ * of equally constrained cells is not saved either, so a restored run stays
+ * valid but may choose differently.
+ */
+public final class Checkpoint {
+  static final int MAGIC = 0x57464343;
+  static final int VERSION = 1;
+  static final int HEADER = 64;
+  private static final int REGION_CELLS = 4096;
+  private static final int WINDOW = 1 << 30;
+
+  private final Model model;
+  private final Path file;
+  private final int rows;
+  private final boolean[] dirty;
+  private boolean all = true;
+  private ByteBuffer scratch;
+
+  /**
+   * Attaches a checkpoint file to model, replacing any previous one. The file
+   * is written by save().
+   */
+  public Checkpoint(Model model, Path file) {
+    this.model = model;
+    this.file = file;
+    this.rows = Math.max(1, REGION_CELLS / model.FMX);
+    this.dirty = new boolean[(model.FMY + this.rows - 1) / this.rows];
+    model.checkpoint = this;
+  }
+
+  public Path file() {
+    return this.file;
+  }
+
+  /**
+   * Marks the bands holding cell i and its neighbours, whose counters change
+   * with its wave.
+   */
+  void changed(int i) {
+    Model model = this.model;
+    int y = i / model.FMX;
+    this.dirty[y / this.rows] = true;
+    this.dirty[(y == 0 ? model.FMY - 1 : y - 1) / this.rows] = true;
+    this.dirty[(y == model.FMY - 1 ? 0 : y + 1) / this.rows] = true;
+  }
+
+  void changedAll() {
+    this.all = true;
+  }
+
+  /**
+   * Writes the current state of the run. Must be called between two steps,
+   * while the model is not running.
+   */
+  public synchronized void save() throws IOException {
+    Model model = this.model;
+    if (model.wave == null) throw new IllegalStateException(
+      "The model has not started a run"
+    );
+
+    double[][] state = model.selector.state();
+    Layout layout = new Layout(model, state.length);
+
+    try (
+      FileChannel channel = FileChannel.open(
+        this.file,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+      )
+    ) {
+      if (channel.size() < layout.tail) this.all = true;
+
+      this.header(channel, model, state.length, false);
+      channel.force(false);
+
+      int cells = model.FMX * model.FMY, words = model.wave.words;
+      int perCell = model.T * 4;
+      for (int r = 0; r < this.dirty.length; r++) {
+        if (!this.all && !this.dirty[r]) continue;
+        this.dirty[r] = false;
+
+        int from = r * this.rows * model.FMX;
+        int count = Math.min(cells, from + this.rows * model.FMX) - from;
+        this.write(
+          channel,
+          layout.wave + (long) from * words * 8,
+          model.wave.bits,
+          from * words,
+          count * words
+        );
+        this.write(
+          channel,
+          layout.compatible + (long) from * perCell * 4,
+          model.compatible,
+          from * perCell,
+          count * perCell
+        );
+        this.write(
+          channel,
+          layout.sumsOfOnes + (long) from * 4,
+          model.sumsOfOnes,
+          from,
+          count
+        );
+        for (int k = 0; k < state.length; k++) this.write(
+          channel,
+          layout.state + ((long) k * cells + from) * 8,
+          state[k],
+          from,
+          count
+        );
+      }
+      this.all = false;
+
+      byte[] random = Checkpoint.serialize(model.random);
+      ByteBuffer tail = ByteBuffer.allocate(16 + random.length)
+        .order(ByteOrder.LITTLE_ENDIAN);
+      tail.putInt(model.contradiction ? 1 : 0);
+      tail.putInt(model.backtracks);
+      tail.putInt(model.stacksize);
+      tail.putInt(random.length);
+      tail.put(random).flip();
+      Checkpoint.writeFully(channel, tail, layout.tail);
+      long stack = layout.tail + tail.capacity();
+      this.write(channel, stack, model.stack, 0, model.stacksize);
+      channel.truncate(stack + (long) model.stacksize * 8);
+      channel.force(false);
+
+      this.header(channel, model, state.length, true);
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Puts model in the state saved in file, ready to go on with its run.
+   * The model must have the same rules, size, periodicity and heuristic as
+   * the one that was saved. The file is memory-mapped while reading.
+   */
+  public static void restore(Model model, Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER) throw new IOException("Not a checkpoint: " + file);
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER)
+        .order(ByteOrder.LITTLE_ENDIAN);
+
+      if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+        throw new IOException("Not a checkpoint: " + file);
+      }
+      if (header.getInt(44) != 1) throw new IOException(
+        "Incomplete checkpoint: " + file
+      );
+      if (
+        header.getInt(8) != model.FMX ||
+        header.getInt(12) != model.FMY ||
+        header.getInt(16) != model.T ||
+        header.getInt(20) != Checkpoint.flags(model) ||
+        header.getInt(24) != model.heuristic.ordinal() ||
+        header.getInt(28) != Checkpoint.fingerprint(model.rules)
+      ) throw new IllegalArgumentException("Checkpoint made for another model");
+
+      model.prepare();
+      model.trail = null;
+
+      double[][] state = model.selector.state();
+      if (header.getInt(36) != state.length) throw new IOException(
+        "Corrupt checkpoint: " + file
+      );
+      Layout layout = new Layout(model, state.length);
+      int cells = model.FMX * model.FMY;
+
+      Checkpoint.read(channel, layout.wave, model.wave.bits);
+      Checkpoint.read(channel, layout.compatible, model.compatible);
+      Checkpoint.read(channel, layout.sumsOfOnes, model.sumsOfOnes);
+      for (int k = 0; k < state.length; k++) Checkpoint.read(
+        channel,
+        layout.state + (long) k * cells * 8,
+        state[k]
+      );
+
+      ByteBuffer tail = channel.map(
+        FileChannel.MapMode.READ_ONLY,
+        layout.tail,
+        channel.size() - layout.tail
+      ).order(ByteOrder.LITTLE_ENDIAN);
+      boolean contradiction = tail.getInt() != 0;
+      int backtracks = tail.getInt();
+      int stacksize = tail.getInt();
+      byte[] random = new byte[tail.getInt()];
+      tail.get(random);
+      tail.asLongBuffer().get(model.stack, 0, stacksize);
+
+      model.random = Checkpoint.deserialize(random);
+      model.seed = header.getInt(32);
+      model.contradiction = contradiction;
+      model.stacksize = stacksize;
+      model.recount();
+      model.selector.restored();
+      model.started();
+      model.backtracks = backtracks;
+      if (model.checkpoint != null) model.checkpoint.changedAll();
+    }
+  }
+
+  /**
+   * Offsets of the sections of a checkpoint of model.
+   */
+  private static final class Layout {
+    final long wave, compatible, sumsOfOnes, state, tail;
+
+    Layout(Model model, int stateArrays) {
+      long cells = (long) model.FMX * model.FMY;
+      this.wave = HEADER;
+      this.compatible = this.wave + cells * model.wave.words * 8;
+      this.sumsOfOnes = this.compatible + cells * model.T * 16;
+      this.state = this.sumsOfOnes + cells * 4;
+      this.tail = this.state + stateArrays * cells * 8;
+    }
+  }
+
+  private void header(
+    FileChannel channel,
+    Model model,
+    int stateArrays,
+    boolean complete
+  ) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(VERSION);
+    header.putInt(model.FMX).putInt(model.FMY).putInt(model.T);
+    header.putInt(Checkpoint.flags(model)).putInt(model.heuristic.ordinal());
+    header.putInt(Checkpoint.fingerprint(model.rules)).putInt(model.seed);
+    header.putInt(stateArrays).putInt(this.rows).putInt(complete ? 1 : 0);
+    header.clear();
+    Checkpoint.writeFully(channel, header, 0);
+  }
+
+  private static int flags(Model model) {
+    return (model.periodic ? 1 : 0) | (model.linearScan ? 2 : 0);
+  }
+
+  private static int fingerprint(Ruleset rules) {
+    return 31 * Arrays.deepHashCode(rules.propagator) + Arrays.hashCode(rules.weights);
+  }
+
+  private ByteBuffer scratch(int bytes) {
+    if (this.scratch == null || this.scratch.capacity() < bytes) this.scratch =
+      ByteBuffer.allocateDirect(Math.min(WINDOW, Math.max(bytes, 1 << 16)))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    this.scratch.clear();
+    return this.scratch;
+  }
+
+  private void write(
+    FileChannel channel,
+    long offset,
+    long[] array,
+    int from,
+    int count
+  ) throws IOException {
+    while (count > 0) {
+      ByteBuffer buffer = this.scratch(count * 8);
+      int n = Math.min(count, buffer.capacity() / 8);
+      buffer.asLongBuffer().put(array, from, n);
+      buffer.limit(n * 8);
+      Checkpoint.writeFully(channel, buffer, offset);
+      offset += n * 8L;
+      from += n;
+      count -= n;
+    }
+  }
+
+  private void write(
+    FileChannel channel,
+    long offset,
+    int[] array,
+    int from,
+    int count
+  ) throws IOException {
+    while (count > 0) {
+      ByteBuffer buffer = this.scratch(count * 4);
+      int n = Math.min(count, buffer.capacity() / 4);
+      buffer.asIntBuffer().put(array, from, n);
+      buffer.limit(n * 4);
+      Checkpoint.writeFully(channel, buffer, offset);
+      offset += n * 4L;
+      from += n;
+      count -= n;
+    }
+  }
+
+  private void write(
+    FileChannel channel,
+    long offset,
+    double[] array,
+    int from,
+    int count
+  ) throws IOException {
+    while (count > 0) {
+      ByteBuffer buffer = this.scratch(count * 8);
+      int n = Math.min(count, buffer.capacity() / 8);
+      buffer.asDoubleBuffer().put(array, from, n);
+      buffer.limit(n * 8);
+      Checkpoint.writeFully(channel, buffer, offset);
+      offset += n * 8L;
+      from += n;
+      count -= n;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset)
+    throws IOException {
+    while (buffer.hasRemaining()) offset += channel.write(buffer, offset);
+  }
+
+  private static MappedByteBuffer map(FileChannel channel, long offset, long bytes)
+    throws IOException {
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+
+  private static void read(FileChannel channel, long offset, long[] array)
+    throws IOException {
+    for (int from = 0; from < array.length;) {
+      int n = Math.min(array.length - from, WINDOW / 8);
+      Checkpoint.map(channel, offset, n * 8L).asLongBuffer().get(array, from, n);
+      offset += n * 8L;
+      from += n;
+    }
+  }
+
+  private static void read(FileChannel channel, long offset, int[] array)
+    throws IOException {
+    for (int from = 0; from < array.length;) {
+      int n = Math.min(array.length - from, WINDOW / 4);
+      Checkpoint.map(channel, offset, n * 4L).asIntBuffer().get(array, from, n);
+      offset += n * 4L;
+      from += n;
+    }
+  }
+
+  private static void read(FileChannel channel, long offset, double[] array)
+    throws IOException {
+    for (int from = 0; from < array.length;) {
+      int n = Math.min(array.length - from, WINDOW / 8);
+      Checkpoint.map(channel, offset, n * 8L).asDoubleBuffer().get(array, from, n);
+      offset += n * 8L;
+      from += n;
+    }
+  }
+
+  private static byte[] serialize(Random random) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(random);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Random deserialize(byte[] bytes) throws IOException {
+    try (
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))
+    ) {
+      // Never instantiate anything else from a file.
+      in.setObjectInputFilter(
+        ObjectInputFilter.Config.createFilter("java.util.Random;!*")
+      );
+      return (Random) in.readObject();
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IOException("Corrupt random state in checkpoint", e);
+    }
+  }
+}
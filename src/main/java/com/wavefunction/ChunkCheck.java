@@ -0,0 +1,108 @@
+package com.wavefunction;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import javax.imageio.ImageIO;
+
+/**
+ * Regression check that chunked generation finishes multi-chunk maps of an
+ * overlapping model, with the settings of Main.runChunkedModel on smaller
+ * chunks: 4x4 chunks of 24x24 cells, N = 3.
+ *
+ * For every seed the map is generated in two calls to generate(), the chunks
+ * are stitched together and every N x N window of the map, seams included,
+ * must be one of the model's patterns.
+ *
+ * Usage: ChunkCheck [sample image] [seeds]. Exits with status 1 if a map
+ * could not be finished or has a window that is not a pattern.
+ */
+public class ChunkCheck {
+  static final int N = 3;
+  static final int CHUNK = 24;
+  static final int CHUNKS_X = 4;
+  static final int ROWS = 2;
+
+  public static void main(String[] args)
+    throws IOException, InterruptedException, ExecutionException {
+    String sample = args.length > 0 ? args[0] : "citytemplate.png";
+    int seeds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    OverlappingModel model = new OverlappingModel(
+      ImageIO.read(new File(sample)),
+      N,
+      CHUNK,
+      CHUNK,
+      true,
+      false,
+      2,
+      0
+    );
+
+    int failed = 0;
+    for (int seed = 0; seed < seeds; seed++) {
+      String result = ChunkCheck.check(model, seed);
+      if (result != null) failed++;
+      System.out.println("Seed " + seed + ": " + (result == null ? "ok" : result));
+    }
+
+    System.out.println((seeds - failed) + "/" + seeds + " maps finished and valid");
+    System.exit(failed == 0 ? 0 : 1);
+  }
+
+  /**
+   * Generates the map of one seed and checks it.
+   * @return null if it is valid, otherwise what is wrong with it.
+   */
+  static String check(OverlappingModel model, int seed)
+    throws InterruptedException, ExecutionException {
+    int width = CHUNKS_X * CHUNK, height = 2 * ROWS * CHUNK;
+    int[] map = new int[width * height];
+    Arrays.fill(map, -1);
+
+    ChunkedModel chunked = new ChunkedModel(model, CHUNK, CHUNK, CHUNKS_X, seed);
+    for (int call = 0; call < 2; call++) if (
+      !chunked.generate(
+        ROWS,
+        (cx, cy, image) -> image.getRGB(
+          0,
+          0,
+          CHUNK,
+          CHUNK,
+          map,
+          cx * CHUNK + cy * CHUNK * width,
+          width
+        )
+      )
+    ) return "not finished after " + chunked.getRow() + " chunk rows";
+
+    Map<Integer, Integer> palette = new HashMap<Integer, Integer>();
+    for (int c = 0; c < model.colors.size(); c++) palette.put(
+      model.colors.get(c).getRGB(),
+      c
+    );
+
+    Set<String> patterns = new HashSet<String>();
+    int[] window = new int[N * N];
+    for (int t = 0; t < model.T; t++) {
+      for (int k = 0; k < N * N; k++) window[k] = model.color(t, k);
+      patterns.add(Arrays.toString(window));
+    }
+
+    int invalid = 0;
+    for (int y = 0; y + N <= height; y++) for (int x = 0; x + N <= width; x++) {
+      for (int dy = 0; dy < N; dy++) for (int dx = 0; dx < N; dx++) window[dx +
+          dy * N] =
+        palette.getOrDefault(map[x + dx + (y + dy) * width], -1);
+      if (!patterns.contains(Arrays.toString(window))) invalid++;
+    }
+
+    return invalid == 0 ? null : invalid + " windows are not patterns";
+  }
+}
@@ -0,0 +1,338 @@
+package com.wavefunction;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+/**
+ * Generates maps of unbounded height, one row of fixed-size chunks at a time.
+ * Each chunk is solved by its own small model, constrained by the last row and
+ * column of the already solved chunks above, above-right and to the left of
+ * it. Only the borders of the last chunk row are kept, so memory depends on
+ * the number of chunks in flight, not on the map size.
+ *
+ * An edge that was solved without looking past it may have no continuation,
+ * which no seed of the next chunk can repair. Overlapping models, whose
+ * patterns span several cells, run into this all the time. So the model of a
+ * chunk also solves a seam band of a few rows and columns past its right and
+ * bottom edges, which is then thrown away: a chunk's edges are only kept once
+ * they are known to have a continuation. The right column is handed on with
+ * its part of the band, so the bands below a chunk row line up.
+ *
+ * A chunk is only sent to the sink once the chunk to its right is solved. If
+ * that one cannot be solved, both are solved again as one wider chunk, which
+ * removes the corner where their edges met.
+ *
+ * Chunk (cx, ry) is solved in step cx + 3 * ry. Chunks of one step do not
+ * touch and are solved in parallel, the chunks above-right and to the left of
+ * a chunk are done before it, and nothing but the chunk to its right depends
+ * on a chunk until the step after that one.
+ */
+public class ChunkedModel {
+
+  /**
+   * Receives every chunk as soon as it is solved. Called from worker threads.
+   */
+  @FunctionalInterface
+  public interface ChunkSink {
+    void accept(int cx, int cy, BufferedImage image) throws IOException;
+  }
+
+  /**
+   * A solved chunk held back until the chunk to its right is solved, with
+   * the edges it was solved against.
+   */
+  private static final class Pending {
+    final int cx;
+    final int[] top, left;
+    final BufferedImage image;
+
+    Pending(int cx, int[] top, int[] left, BufferedImage image) {
+      this.cx = cx;
+      this.top = top;
+      this.left = left;
+      this.image = image;
+    }
+  }
+
+  private final Model rules;
+  private final int chunkWidth, chunkHeight, chunksX;
+  private final int seed;
+  private final int threads;
+  private int retries = 10;
+  private int seam;
+
+  private final int[][] bottoms;
+  private int row;
+
+  /**
+   * Creates a new chunked generation.
+   * @param rules Model whose rules are used for every chunk. It is not run itself.
+   * @param chunkWidth Width of a chunk, in cells.
+   * @param chunkHeight Height of a chunk, in cells.
+   * @param chunksX Number of chunks per row.
+   * @param seed Seed of the whole map. Each chunk derives its own from it.
+   * @param threads Number of chunks solved at the same time.
+   */
+  public ChunkedModel(
+    Model rules,
+    int chunkWidth,
+    int chunkHeight,
+    int chunksX,
+    int seed,
+    int threads
+  ) {
+    this.rules = rules;
+    this.chunkWidth = chunkWidth;
+    this.chunkHeight = chunkHeight;
+    this.chunksX = chunksX;
+    this.seed = seed;
+    this.threads = threads;
+    this.bottoms = new int[chunksX][];
+    this.seam = rules.overlap() > 0
+      ? Math.min(chunkWidth, chunkHeight) / 2
+      : 0;
+  }
+
+  public ChunkedModel(
+    Model rules,
+    int chunkWidth,
+    int chunkHeight,
+    int chunksX,
+    int seed
+  ) {
+    this(
+      rules,
+      chunkWidth,
+      chunkHeight,
+      chunksX,
+      seed,
+      Runtime.getRuntime().availableProcessors()
+    );
+  }
+
+  /**
+   * Number of seeds tried for a chunk before the generation gives up.
+   */
+  public void setRetries(int retries) {
+    this.retries = retries;
+  }
+
+  /**
+   * Number of rows and columns solved past the edges of every chunk and then
+   * thrown away. Half a chunk by default when patterns overlap, 0 for tiled
+   * models. Wider seams cost time but let fewer chunks fail.
+   * @param seam At most the chunk width and height.
+   */
+  public void setSeam(int seam) {
+    if (
+      seam < 0 || seam > this.chunkWidth || seam > this.chunkHeight
+    ) throw new IllegalArgumentException("Seam of " + seam + " cells");
+    this.seam = seam;
+  }
+
+  /**
+   * Index of the next chunk row to be generated.
+   */
+  public int getRow() {
+    return this.row;
+  }
+
+  /**
+   * Generates the next rows of chunks below the ones already generated.
+   * Can be called again to keep extending the map.
+   * @param rows Number of chunk rows to generate.
+   * @param sink Receives the image of every solved chunk.
+   * @return false if a chunk could not be solved with any of its seeds, in
+   * which case the generation cannot be continued.
+   */
+  public boolean generate(int rows, ChunkSink sink)
+    throws InterruptedException, ExecutionException {
+    int[][] rights = new int[rows][];
+    Pending[] pending = new Pending[rows];
+    ExecutorService ex = Executors.newFixedThreadPool(
+      Math.max(
+        1,
+        Math.min(this.threads, Math.min(rows, (this.chunksX + 2) / 3))
+      )
+    );
+
+    try {
+      for (int k = 0; k < 3 * (rows - 1) + this.chunksX; k++) {
+        List<Callable<Boolean>> step = new ArrayList<Callable<Boolean>>();
+
+        for (int ry = Math.max(0, (k - this.chunksX + 3) / 3); ry <= Math.min(
+            k / 3,
+            rows - 1
+          ); ry++) {
+          int cx = k - 3 * ry, r = ry;
+          step.add(() -> this.solveChunk(cx, r, rights, pending, sink));
+        }
+
+        for (Future<Boolean> solved : ex.invokeAll(step)) if (
+          !solved.get()
+        ) return false;
+      }
+    } finally {
+      ex.shutdown();
+    }
+
+    this.row += rows;
+    return true;
+  }
+
+  private boolean solveChunk(
+    int cx,
+    int ry,
+    int[][] rights,
+    Pending[] pending,
+    ChunkSink sink
+  ) throws IOException {
+    int cy = this.row + ry;
+    int[] top = this.top(cx);
+    int[] left = cx > 0 ? rights[ry] : null;
+    Pending previous = pending[ry];
+    pending[ry] = null;
+
+    int first = cx;
+    Model model = this.solve(cx, cy, 1, top, left);
+    if (model == null && previous != null) {
+      int[] merged = null;
+      if (top != null) {
+        merged = Arrays.copyOf(previous.top, this.chunkWidth + top.length);
+        System.arraycopy(top, 0, merged, this.chunkWidth, top.length);
+      }
+      first = previous.cx;
+      model = this.solve(first, cy, 2, merged, previous.left);
+    }
+    if (model == null) return false;
+    if (first == cx && previous != null) sink.accept(
+      previous.cx,
+      cy,
+      previous.image
+    );
+
+    BufferedImage image = model.graphics();
+    int scaleX = image.getWidth() / model.FMX;
+    int scaleY = image.getHeight() / model.FMY;
+
+    for (int x0 = first; x0 <= cx; x0++) {
+      int offset = (x0 - first) * this.chunkWidth;
+      int[] bottom = new int[this.chunkWidth];
+      for (int x = 0; x < this.chunkWidth; x++) bottom[x] =
+        model.observed[offset + x + (this.chunkHeight - 1) * model.FMX];
+      this.bottoms[x0] = bottom;
+
+      BufferedImage chunk = image.getSubimage(
+        offset * scaleX,
+        0,
+        this.chunkWidth * scaleX,
+        this.chunkHeight * scaleY
+      );
+      if (x0 < cx || cx == this.chunksX - 1) sink.accept(x0, cy, chunk); else {
+        if (x0 > first) left = this.column(model, offset - 1);
+        pending[ry] = new Pending(cx, top, left, chunk);
+      }
+    }
+
+    rights[ry] = this.column(model, (cx - first + 1) * this.chunkWidth - 1);
+    return true;
+  }
+
+  /**
+   * Returns the top edge of chunk cx and the seam past it, from the bottom
+   * rows of the chunks above and above-right, or null on the first row.
+   * Cells with nothing above are -1.
+   */
+  private int[] top(int cx) {
+    if (this.bottoms[cx] == null) return null;
+
+    int[] top = new int[this.chunkWidth + this.seam];
+    Arrays.fill(top, -1);
+    System.arraycopy(this.bottoms[cx], 0, top, 0, this.chunkWidth);
+    if (
+      cx + 1 < this.chunksX && this.bottoms[cx + 1] != null
+    ) System.arraycopy(this.bottoms[cx + 1], 0, top, this.chunkWidth, this.seam);
+    return top;
+  }
+
+  /**
+   * Returns column x of a solved chunk model, down to the end of its seam.
+   */
+  private int[] column(Model model, int x) {
+    int[] column = new int[this.chunkHeight + this.seam];
+    for (int y = 0; y < column.length; y++) column[y] =
+      model.observed[x + y * model.FMX];
+    return column;
+  }
+
+  /**
+   * Solves span chunks side by side, starting at chunk cx, below top and
+   * right of left.
+   * @return The solved model, or null if none of the seeds worked.
+   */
+  private Model solve(int cx, int cy, int span, int[] top, int[] left) {
+    Model model = this.rules.forkChunk(
+      span * this.chunkWidth + this.seam,
+      this.chunkHeight + this.seam
+    );
+    boolean[] allowed = new boolean[model.T];
+
+    for (int attempt = 0; attempt < this.retries; attempt++) {
+      model.begin(Objects.hash(this.seed, cx, cy, span, attempt));
+
+      if (top != null) for (int x = 0; x < top.length; x++) if (
+        top[x] >= 0
+      ) this.restrict(model, x, top[x], 1, allowed);
+      if (left != null) for (int y = 0; y < left.length; y++) this.restrict(
+          model,
+          y * model.FMX,
+          left[y],
+          2,
+          allowed
+        );
+      model.propagate();
+
+      if (model.resume(0, null)) return model;
+    }
+
+    return null;
+  }
+
+  /**
+   * Bans from cell i every pattern that cannot sit in direction d of an
+   * already solved neighbour with pattern t.
+   */
+  private void restrict(Model model, int i, int t, int d, boolean[] allowed) {
+    int[] compatible = model.rules.propagator[d][t];
+    for (int l = 0; l < compatible.length; l++) allowed[compatible[l]] = true;
+
+    for (int t2 = 0; t2 < model.T; t2++) if (
+      !allowed[t2] && model.wave.get(i, t2)
+    ) model.ban(i, t2);
+
+    for (int l = 0; l < compatible.length; l++) allowed[compatible[l]] = false;
+  }
+
+  /**
+   * Returns a sink that writes every chunk to directory/chunk_cy_cx.png.
+   */
+  public static ChunkSink writeTo(File directory) {
+    directory.mkdirs();
+    return (int cx, int cy, BufferedImage image) -> ImageIO.write(
+      image,
+      "png",
+      new File(directory, String.format("chunk_%d_%d.png", cy, cx))
+    );
+  }
+}
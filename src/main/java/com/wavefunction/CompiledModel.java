@@ -0,0 +1,178 @@
+package com.wavefunction;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The compiled rules of an OverlappingModel (colors, patterns, weights and
+ * propagator) in a compact binary file, so a model can skip pattern
+ * extraction and propagator construction when it has already been built once.
+ *
+ * Layout, all little-endian:
+ * magic, version, 32-byte key, N, C, T, C color ints, the T * N * N pattern
+ * cells packed as in OverlappingModel.patterns, T weight doubles, then for every direction and pattern the propagator
+ * length followed by its entries.
+ */
+final class CompiledModel {
+  private static final int MAGIC = 0x31434657; // "WFC1"
+  private static final int VERSION = 2;
+  private static final int KEY_LENGTH = 32;
+
+  final byte[] key;
+  final int N;
+  final int[] colors;
+  final byte[] patterns;
+  final double[] weights;
+  final int[][][] propagator;
+
+  CompiledModel(
+    byte[] key,
+    int N,
+    int[] colors,
+    byte[] patterns,
+    double[] weights,
+    int[][][] propagator
+  ) {
+    this.key = key;
+    this.N = N;
+    this.colors = colors;
+    this.patterns = patterns;
+    this.weights = weights;
+    this.propagator = propagator;
+  }
+
+  /**
+   * Returns the SHA-256 of everything the compiled rules depend on: the
+   * source pixels, N, the symmetry and whether the input is periodic.
+   */
+  static byte[] key(BufferedImage data, int N, int symmetry, boolean periodicInput) {
+    int width = data.getWidth(), height = data.getHeight();
+    int[] pixels = data.getRGB(0, 0, width, height, null, 0, width);
+
+    ByteBuffer buffer = ByteBuffer.allocate(4 * (pixels.length + 5));
+    buffer.putInt(width).putInt(height).putInt(N).putInt(symmetry);
+    buffer.putInt(periodicInput ? 1 : 0);
+    buffer.asIntBuffer().put(pixels);
+
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(buffer.array());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String fileName(byte[] key) {
+    StringBuilder result = new StringBuilder();
+    for (byte b : key) result.append(String.format("%02x", b));
+    return result.append(".wfc").toString();
+  }
+
+  /**
+   * Maps a compiled model file into memory and reads it.
+   * @return The compiled model, or null if the file is missing or was written
+   * for another key or version.
+   */
+  static CompiledModel load(Path file, byte[] key) throws IOException {
+    if (!Files.isRegularFile(file)) return null;
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer map = channel.map(
+        FileChannel.MapMode.READ_ONLY,
+        0,
+        channel.size()
+      );
+      map.order(ByteOrder.LITTLE_ENDIAN);
+
+      if (map.remaining() < 8 + KEY_LENGTH + 12) return null;
+      if (map.getInt() != MAGIC || map.getInt() != VERSION) return null;
+
+      byte[] stored = new byte[KEY_LENGTH];
+      map.get(stored);
+      if (!MessageDigest.isEqual(stored, key)) return null;
+
+      int N = map.getInt(), C = map.getInt(), T = map.getInt();
+
+      int[] colors = new int[C];
+      IntBuffer ints = map.asIntBuffer();
+      ints.get(colors);
+      map.position(map.position() + 4 * C);
+
+      byte[] patterns = new byte[T * N * N * PatternTable.width(C)];
+      map.get(patterns);
+
+      double[] weights = new double[T];
+      for (int t = 0; t < T; t++) weights[t] = map.getDouble();
+
+      ints = map.asIntBuffer();
+      int[][][] propagator = new int[4][T][];
+      for (int d = 0; d < 4; d++) for (int t = 0; t < T; t++) {
+        propagator[d][t] = new int[ints.get()];
+        ints.get(propagator[d][t]);
+      }
+
+      return new CompiledModel(key, N, colors, patterns, weights, propagator);
+    } catch (RuntimeException e) {
+      // A truncated or corrupted file is treated as a cache miss.
+      return null;
+    }
+  }
+
+  /**
+   * Writes the compiled model next to file and atomically moves it in place,
+   * so concurrent readers never see a partial file.
+   */
+  void save(Path file) throws IOException {
+    int T = this.weights.length;
+    long size = 8 + KEY_LENGTH + 12 + 4L * this.colors.length;
+    size += this.patterns.length + 8L * T;
+    for (int d = 0; d < 4; d++) for (int t = 0; t < T; t++) size +=
+      4L * (1 + this.propagator[d][t].length);
+
+    ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size));
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).put(this.key);
+    buffer.putInt(this.N).putInt(this.colors.length).putInt(T);
+    for (int c : this.colors) buffer.putInt(c);
+    buffer.put(this.patterns);
+    for (double w : this.weights) buffer.putDouble(w);
+    for (int d = 0; d < 4; d++) for (int t = 0; t < T; t++) {
+      buffer.putInt(this.propagator[d][t].length);
+      for (int t2 : this.propagator[d][t]) buffer.putInt(t2);
+    }
+    buffer.flip();
+
+    Path directory = file.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, "compiled", ".tmp");
+    try {
+      try (
+        FileChannel channel = FileChannel.open(
+          temporary,
+          StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING
+        )
+      ) {
+        while (buffer.hasRemaining()) channel.write(buffer);
+      }
+      Files.move(
+        temporary,
+        file,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE
+      );
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.wavefunction;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Patterns pinned or forbidden in cells of a model's output before it runs,
+ * for inpainting or fixed roads and rivers.
+ *
+ * Restrictions are collected per cell, then applied in bulk: every banned
+ * pattern of every restricted cell is banned and the wave is propagated once.
+ * The propagated state (wave, counters and sumsOfOnes) is kept, so further
+ * runs, with any seed and from any fork of the same size and periodicity,
+ * start by copying it instead of redoing the bans.
+ *
+ * Restrictions must not change while a model is running with them.
+ */
+public final class Constraints {
+  final int width, height, T;
+  private final Wave allowed;
+  private final boolean[] touched;
+  private int[] cells = new int[64];
+  private int count;
+
+  private Ruleset rules;
+  private boolean periodic;
+  private long[] bits;
+  private int[] compatible, sumsOfOnes;
+  private int collapsed;
+  private boolean contradiction;
+
+  /**
+   * Creates an empty set of constraints for the output of model.
+   */
+  public Constraints(Model model) {
+    this.width = model.FMX;
+    this.height = model.FMY;
+    this.T = model.T;
+    this.allowed = new Wave(this.width * this.height, this.T);
+    this.allowed.fill();
+    this.touched = new boolean[this.width * this.height];
+  }
+
+  /**
+   * Restricts cell (x, y) to the given patterns.
+   */
+  public Constraints allow(int x, int y, int... patterns) {
+    int i = this.cell(x, y);
+    boolean[] keep = new boolean[this.T];
+    for (int t : patterns) keep[t] = true;
+    for (int t = 0; t < this.T; t++) if (!keep[t]) this.allowed.clear(i, t);
+    return this;
+  }
+
+  /**
+   * Forbids the given patterns in cell (x, y).
+   */
+  public Constraints ban(int x, int y, int... patterns) {
+    int i = this.cell(x, y);
+    for (int t : patterns) this.allowed.clear(i, t);
+    return this;
+  }
+
+  /**
+   * Restricts every cell set in mask to the given patterns.
+   * @param mask One flag per cell, indexed x + y * width.
+   */
+  public Constraints mask(boolean[] mask, int... patterns) {
+    for (int i = 0; i < mask.length; i++) if (mask[i]) this.allow(
+        i % this.width,
+        i / this.width,
+        patterns
+      );
+    return this;
+  }
+
+  /**
+   * Pins a rectangle of cells to fixed patterns.
+   * @param x Left column of the rectangle.
+   * @param y Top row of the rectangle.
+   * @param stampWidth Width of the rectangle.
+   * @param patterns Pattern of every cell of the rectangle, row by row, or -1
+   * to leave a cell free.
+   */
+  public Constraints stamp(int x, int y, int stampWidth, int[] patterns) {
+    for (int k = 0; k < patterns.length; k++) if (patterns[k] >= 0) this.allow(
+        x + k % stampWidth,
+        y + k / stampWidth,
+        patterns[k]
+      );
+    return this;
+  }
+
+  private int cell(int x, int y) {
+    if (x < 0 || y < 0 || x >= this.width || y >= this.height) {
+      throw new IndexOutOfBoundsException(
+        String.format("Cell (%d, %d) outside %dx%d", x, y, this.width, this.height)
+      );
+    }
+
+    int i = x + y * this.width;
+    if (!this.touched[i]) {
+      this.touched[i] = true;
+      if (this.count == this.cells.length) this.cells =
+        Arrays.copyOf(this.cells, this.count * 2);
+      this.cells[this.count++] = i;
+    }
+
+    synchronized (this) {
+      this.rules = null;
+    }
+    return i;
+  }
+
+  /**
+   * Puts model in the constrained starting state of a run: cleared, with
+   * every restriction applied and propagated. The model's random generator
+   * must be set for the run before, and is used by the cell selector only.
+   */
+  void restore(Model model) {
+    this.prepare(model);
+
+    System.arraycopy(this.bits, 0, model.wave.bits, 0, this.bits.length);
+    System.arraycopy(this.compatible, 0, model.compatible, 0, this.compatible.length);
+    System.arraycopy(this.sumsOfOnes, 0, model.sumsOfOnes, 0, this.sumsOfOnes.length);
+    model.collapsed = this.collapsed;
+    model.contradiction = this.contradiction;
+    model.stacksize = 0;
+    model.selector.clear();
+  }
+
+  /**
+   * Computes the constrained state on model the first time it is needed.
+   */
+  private synchronized void prepare(Model model) {
+    if (this.rules == model.rules && this.periodic == model.periodic) return;
+
+    Random random = model.random;
+    model.random = new Random(0);
+    model.Clear();
+    model.random = random;
+
+    Wave wave = model.wave;
+    for (int k = 0; k < this.count && !model.contradiction; k++) {
+      int i = this.cells[k];
+      for (int t = wave.first(i); t >= 0; t = wave.next(i, t + 1)) if (
+        !this.allowed.get(i, t)
+      ) model.ban(i, t);
+    }
+    model.propagate();
+
+    this.bits = wave.bits.clone();
+    this.compatible = model.compatible.clone();
+    this.sumsOfOnes = model.sumsOfOnes.clone();
+    this.collapsed = model.collapsed;
+    this.contradiction = model.contradiction;
+    this.rules = model.rules;
+    this.periodic = model.periodic;
+  }
+}
@@ -0,0 +1,129 @@
+package com.wavefunction;
+
+import java.util.Arrays;
+
+/**
+ * Indexed binary min-heap over cell indices, ordered by a double priority.
+ * Keeps the position of every cell so a priority can be changed or a cell
+ * removed in O(log n) without searching for it.
+ */
+final class EntropyHeap {
+  private final int[] heap;
+  private final int[] position;
+  private final double[] priority;
+  private int size;
+
+  EntropyHeap(int capacity) {
+    this.heap = new int[capacity];
+    this.position = new int[capacity];
+    this.priority = new double[capacity];
+    Arrays.fill(this.position, -1);
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  boolean contains(int i) {
+    return this.position[i] >= 0;
+  }
+
+  /**
+   * Returns the cell with the lowest priority, or -1 if the heap is empty.
+   */
+  int peek() {
+    return this.size == 0 ? -1 : this.heap[0];
+  }
+
+  void clear() {
+    for (int k = 0; k < this.size; k++) this.position[this.heap[k]] = -1;
+    this.size = 0;
+  }
+
+  /**
+   * Appends a cell without restoring heap order. Call heapify() once all
+   * cells have been added.
+   */
+  void append(int i, double p) {
+    this.priority[i] = p;
+    this.heap[this.size] = i;
+    this.position[i] = this.size;
+    this.size++;
+  }
+
+  void push(int i, double p) {
+    this.append(i, p);
+    this.siftUp(this.size - 1);
+  }
+
+  void heapify() {
+    for (int k = (this.size >>> 1) - 1; k >= 0; k--) this.siftDown(k);
+  }
+
+  void update(int i, double p) {
+    int k = this.position[i];
+    if (k < 0) return;
+
+    double old = this.priority[i];
+    this.priority[i] = p;
+    if (p < old) this.siftUp(k); else this.siftDown(k);
+  }
+
+  void remove(int i) {
+    int k = this.position[i];
+    if (k < 0) return;
+
+    this.position[i] = -1;
+    this.size--;
+    if (k == this.size) return;
+
+    int last = this.heap[this.size];
+    this.heap[k] = last;
+    this.position[last] = k;
+    this.siftDown(k);
+    if (this.heap[k] == last) this.siftUp(k);
+  }
+
+  private void siftUp(int k) {
+    int i = this.heap[k];
+    double p = this.priority[i];
+
+    while (k > 0) {
+      int parent = (k - 1) >>> 1;
+      int j = this.heap[parent];
+      if (this.priority[j] <= p) break;
+
+      this.heap[k] = j;
+      this.position[j] = k;
+      k = parent;
+    }
+
+    this.heap[k] = i;
+    this.position[i] = k;
+  }
+
+  private void siftDown(int k) {
+    int i = this.heap[k];
+    double p = this.priority[i];
+    int half = this.size >>> 1;
+
+    while (k < half) {
+      int child = 2 * k + 1;
+      int right = child + 1;
+      if (
+        right < this.size &&
+        this.priority[this.heap[right]] < this.priority[this.heap[child]]
+      ) child = right;
+
+      int j = this.heap[child];
+      if (p <= this.priority[j]) break;
+
+      this.heap[k] = j;
+      this.position[j] = k;
+      k = child;
+    }
+
+    this.heap[k] = i;
+    this.position[i] = k;
+  }
+}
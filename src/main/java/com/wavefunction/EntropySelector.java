@@ -0,0 +1,158 @@
+package com.wavefunction;
+
+/**
+ * Heuristic.ENTROPY: the cell with the lowest entropy, plus a little noise
+ * to break ties. Entropies are kept per cell from running sums of the
+ * weights and weight * log(weight) of the allowed patterns. Cells are found
+ * through an indexed min-heap, or by scanning every cell when the model uses
+ * a linear scan.
+ */
+final class EntropySelector implements CellSelector {
+  private final Model model;
+  private final Ruleset rules;
+  private final boolean linearScan;
+
+  final double[] sumsOfWeights, sumsOfWeightLogWeights, entropies;
+  final EntropyHeap heap;
+  private final double[] noise;
+
+  EntropySelector(Model model) {
+    this.model = model;
+    this.rules = model.rules;
+    this.linearScan = model.linearScan;
+
+    int length = model.wave.length;
+    this.sumsOfWeights = new double[length];
+    this.sumsOfWeightLogWeights = new double[length];
+    this.entropies = new double[length];
+    this.heap = this.linearScan ? null : new EntropyHeap(length);
+    this.noise = this.linearScan ? null : new double[length];
+  }
+
+  @Override
+  public void clear() {
+    Model model = this.model;
+    for (int i = 0; i < model.wave.length; i++) {
+      if (model.sumsOfOnes[i] == model.T) {
+        this.sumsOfWeights[i] = this.rules.sumOfWeights;
+        this.sumsOfWeightLogWeights[i] = this.rules.sumOfWeightLogWeights;
+        this.entropies[i] = this.rules.startingEntropy;
+        continue;
+      }
+
+      double sum = 0, sumOfLogs = 0;
+      for (int t = model.wave.first(i); t >= 0; t = model.wave.next(i, t + 1)) {
+        sum += this.rules.weights[t];
+        sumOfLogs += this.rules.weightLogWeights[t];
+      }
+      this.sumsOfWeights[i] = sum;
+      this.sumsOfWeightLogWeights[i] = sumOfLogs;
+      this.entropies[i] = Math.log(sum) - sumOfLogs / sum;
+    }
+
+    if (this.linearScan) return;
+    if (model.T > 1) for (int i = 0; i < model.wave.length; i++) if (
+      !model.onBoundary(i % model.FMX, i / model.FMX)
+    ) this.noise[i] = 1e-6 * model.random.nextDouble();
+    this.fillHeap();
+  }
+
+  private void fillHeap() {
+    Model model = this.model;
+    this.heap.clear();
+    if (model.T > 1) {
+      for (int i = 0; i < model.wave.length; i++) if (
+        model.sumsOfOnes[i] > 1 && !model.onBoundary(i % model.FMX, i / model.FMX)
+      ) this.heap.append(i, this.entropies[i] + this.noise[i]);
+      this.heap.heapify();
+    }
+  }
+
+  @Override
+  public double[][] state() {
+    return this.linearScan
+      ? new double[][] { this.sumsOfWeights, this.sumsOfWeightLogWeights }
+      : new double[][] {
+        this.sumsOfWeights,
+        this.sumsOfWeightLogWeights,
+        this.noise,
+      };
+  }
+
+  @Override
+  public void restored() {
+    Model model = this.model;
+    for (int i = 0; i < model.wave.length; i++) {
+      double sum = this.sumsOfWeights[i];
+      this.entropies[i] = model.sumsOfOnes[i] == model.T
+        ? this.rules.startingEntropy
+        : Math.log(sum) - this.sumsOfWeightLogWeights[i] / sum;
+    }
+
+    if (!this.linearScan) this.fillHeap();
+  }
+
+  @Override
+  public void banned(int i, int t, int amount) {
+    this.sumsOfWeights[i] -= this.rules.weights[t];
+    this.sumsOfWeightLogWeights[i] -= this.rules.weightLogWeights[t];
+
+    double sum = this.sumsOfWeights[i];
+    this.entropies[i] = Math.log(sum) - this.sumsOfWeightLogWeights[i] / sum;
+
+    if (!this.linearScan) {
+      if (amount > 1) this.heap.update(i, this.entropies[i] + this.noise[i]);
+      else this.heap.remove(i);
+    }
+  }
+
+  @Override
+  public void unbanned(int i, int t, int amount) {
+    this.sumsOfWeights[i] += this.rules.weights[t];
+    this.sumsOfWeightLogWeights[i] += this.rules.weightLogWeights[t];
+
+    double sum = this.sumsOfWeights[i];
+    this.entropies[i] = Math.log(sum) - this.sumsOfWeightLogWeights[i] / sum;
+
+    Model model = this.model;
+    if (
+      !this.linearScan &&
+      amount > 1 &&
+      !model.onBoundary(i % model.FMX, i / model.FMX)
+    ) {
+      double priority = this.entropies[i] + this.noise[i];
+      if (this.heap.contains(i)) this.heap.update(i, priority);
+      else this.heap.push(i, priority);
+    }
+  }
+
+  @Override
+  public int next() {
+    return this.linearScan ? this.scan() : this.heap.peek();
+  }
+
+  private int scan() {
+    Model model = this.model;
+    double min = 1e+3;
+    int argmin = -1;
+
+    for (int i = 0; i < model.wave.length; i++) {
+      if (model.onBoundary(i % model.FMX, i / model.FMX)) continue;
+
+      int amount = model.sumsOfOnes[i];
+      if (amount == 0) return -2;
+
+      double entropy = this.entropies[i];
+
+      if (amount > 1 && entropy <= min) {
+        double noise = 1e-6 * model.random.nextDouble();
+        if (entropy + noise < min) {
+          min = entropy + noise;
+          argmin = i;
+        }
+      }
+    }
+
+    return argmin;
+  }
+}
@@ -0,0 +1,179 @@
+package com.wavefunction;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A run of a model that goes forward in slices bounded by time or by a
+ * number of observations, so a scheduler can interleave many runs and drop
+ * the ones that take too long.
+ *
+ * Every slice can run on a different thread. Slices of one generation never
+ * overlap, and the model must not be run by anything else until the
+ * generation is finished. status() and progress() can be read from any
+ * thread at any time without waiting for a slice.
+ */
+public final class Generation<M extends Model> {
+  public enum Status {
+    RUNNING,
+    SOLVED,
+    CONTRADICTION,
+    CANCELLED;
+
+    public boolean finished() {
+      return this != RUNNING;
+    }
+  }
+
+  private final M model;
+  private final int seed;
+  private final AtomicBoolean cancelled;
+  private boolean started;
+  private Checkpoint checkpoint;
+
+  private volatile Status status = Status.RUNNING;
+  private volatile double progress;
+  private volatile long nanos;
+
+  private Generation(M model, int seed, AtomicBoolean cancelled) {
+    this.model = model;
+    this.seed = seed;
+    this.cancelled = cancelled;
+  }
+
+  /**
+   * Prepares a run of model with seed. Nothing runs until the first slice.
+   */
+  public static <M extends Model> Generation<M> start(M model, int seed) {
+    return new Generation<M>(model, seed, new AtomicBoolean(false));
+  }
+
+  /**
+   * Same as start(model, seed) with a cancellation flag that can be shared by
+   * several generations.
+   */
+  public static <M extends Model> Generation<M> start(
+    M model,
+    int seed,
+    AtomicBoolean cancelled
+  ) {
+    return new Generation<M>(model, seed, cancelled);
+  }
+
+  /**
+   * Goes on with a generation saved by checkpoint(), on any model with the
+   * same rules, size and settings as the saved one.
+   */
+  public static <M extends Model> Generation<M> resume(M model, Path file)
+    throws IOException {
+    Checkpoint.restore(model, file);
+    Generation<M> generation = new Generation<M>(
+      model,
+      model.seed,
+      new AtomicBoolean(false)
+    );
+    generation.started = true;
+    generation.progress = model.progress();
+    return generation;
+  }
+
+  /**
+   * Saves the generation between two slices, so resume() can go on with it
+   * after a restart. Saving again to the same file only rewrites the parts
+   * of the output that changed since.
+   * @see Checkpoint
+   */
+  public synchronized void checkpoint(Path file) throws IOException {
+    if (!this.started) {
+      this.model.begin(this.seed);
+      this.started = true;
+    }
+    if (
+      this.checkpoint == null || !this.checkpoint.file().equals(file)
+    ) this.checkpoint = new Checkpoint(this.model, file);
+    this.checkpoint.save();
+  }
+
+  /**
+   * Runs the next slice, for at most budget of time.
+   * @return The status after the slice.
+   */
+  public Status step(long budget, TimeUnit unit) {
+    return this.step(0, unit.toNanos(budget));
+  }
+
+  /**
+   * Runs the next slice. At least one observation is made unless the
+   * generation is finished or cancelled.
+   * @param steps Maximum number of observations, 0 for no limit.
+   * @param budgetNanos Maximum running time, 0 for no limit. Checked between
+   * observations, so a slice can overrun it by one propagation.
+   * @return The status after the slice.
+   */
+  public synchronized Status step(int steps, long budgetNanos) {
+    if (this.status.finished()) return this.status;
+
+    long start = System.nanoTime();
+    if (!this.started) {
+      this.model.begin(this.seed);
+      this.started = true;
+    }
+
+    Boolean result = this.model.advance(steps, budgetNanos, this.cancelled);
+    this.nanos += System.nanoTime() - start;
+
+    if (result == null) {
+      this.progress = this.model.progress();
+    } else if (result) {
+      this.progress = 1;
+      this.status = Status.SOLVED;
+    } else {
+      this.status = this.cancelled.get()
+        ? Status.CANCELLED
+        : Status.CONTRADICTION;
+    }
+    return this.status;
+  }
+
+  /**
+   * Stops the generation. A slice in progress stops at its next observation.
+   */
+  public void cancel() {
+    this.cancelled.set(true);
+  }
+
+  public Status status() {
+    Status status = this.status;
+    return status == Status.RUNNING && this.cancelled.get()
+      ? Status.CANCELLED
+      : status;
+  }
+
+  /**
+   * Fraction of the output cells collapsed to a single pattern at the end of
+   * the last slice, 1 once solved.
+   */
+  public double progress() {
+    return this.progress;
+  }
+
+  /**
+   * Total time spent in slices so far, in nanoseconds.
+   */
+  public long elapsedNanos() {
+    return this.nanos;
+  }
+
+  public int seed() {
+    return this.seed;
+  }
+
+  /**
+   * The model being run. Its output is only meaningful once solved.
+   */
+  public M model() {
+    return this.model;
+  }
+}
@@ -0,0 +1,47 @@
+package com.wavefunction;
+
+/**
+ * How a Model chooses the next cell to observe.
+ */
+public enum Heuristic {
+  /**
+   * Lowest Shannon entropy of the remaining patterns' weights, the original
+   * behaviour. Costs a Math.log per ban.
+   */
+  ENTROPY {
+    CellSelector create(Model model) {
+      return new EntropySelector(model);
+    }
+  },
+
+  /**
+   * Fewest remaining patterns, read from sumsOfOnes. Ties go to the cell
+   * constrained last, which keeps observations close together.
+   */
+  MINIMUM_REMAINING_VALUES {
+    CellSelector create(Model model) {
+      return new RemainingValuesSelector(model);
+    }
+  },
+
+  /**
+   * First undecided cell in row order. Needs no bookkeeping at all.
+   */
+  SCANLINE {
+    CellSelector create(Model model) {
+      return new ScanlineSelector(model);
+    }
+  },
+
+  /**
+   * A random undecided cell, each weighted by one plus the number of patterns
+   * it has lost, so constrained cells tend to be decided first.
+   */
+  WEIGHTED_RANDOM {
+    CellSelector create(Model model) {
+      return new WeightedRandomSelector(model);
+    }
+  };
+
+  abstract CellSelector create(Model model);
+}
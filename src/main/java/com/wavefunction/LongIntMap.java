@@ -0,0 +1,78 @@
+package com.wavefunction;
+
+/**
+ * Open-addressing hash map from long keys to int values, with linear probing
+ * and no boxing.
+ */
+final class LongIntMap {
+  private long[] keys;
+  private int[] values;
+  private boolean[] used;
+  private int size;
+  private int mask;
+
+  LongIntMap(int expected) {
+    int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+    this.keys = new long[capacity];
+    this.values = new int[capacity];
+    this.used = new boolean[capacity];
+    this.mask = capacity - 1;
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  int get(long key, int missing) {
+    int slot = this.slot(key);
+    return this.used[slot] ? this.values[slot] : missing;
+  }
+
+  void put(long key, int value) {
+    int slot = this.slot(key);
+    if (!this.used[slot]) slot = this.insert(slot, key);
+    this.values[slot] = value;
+  }
+
+  private int slot(long key) {
+    int slot = LongIntMap.hash(key) & this.mask;
+    while (this.used[slot] && this.keys[slot] != key) slot =
+      (slot + 1) & this.mask;
+    return slot;
+  }
+
+  private int insert(int slot, long key) {
+    this.size++;
+    if (2 * this.size > this.keys.length) {
+      this.grow();
+      slot = this.slot(key);
+    }
+
+    this.used[slot] = true;
+    this.keys[slot] = key;
+    return slot;
+  }
+
+  private void grow() {
+    long[] keys = this.keys;
+    int[] values = this.values;
+    boolean[] used = this.used;
+
+    this.keys = new long[keys.length * 2];
+    this.values = new int[keys.length * 2];
+    this.used = new boolean[keys.length * 2];
+    this.mask = this.keys.length - 1;
+
+    for (int s = 0; s < keys.length; s++) if (used[s]) {
+      int slot = this.slot(keys[s]);
+      this.used[slot] = true;
+      this.keys[slot] = keys[s];
+      this.values[slot] = values[s];
+    }
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -1,13 +1,12 @@
 package com.wavefunction;
 
 import java.awt.image.BufferedImage;
-import java.awt.Image;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.imageio.ImageIO;
 import org.w3c.dom.*;
 
@@ -20,86 +19,12 @@ public class Main {
 			return d;
 	}
 	
-	static List<Map<String, String>> initTilesData() {
-	      List<Map<String, String>> tilesData = new ArrayList<Map<String, String>>();
-	      String[] pairs = new String[] {
-	    		  "corner", "L",
-	    		  "cross", "I",
-	    		  "empty", "X",
-	    		  "line", "I",
-	    		  "t", "T"
-	      };
-	      
-	      for(int i = 0; i < pairs.length; i += 2) {
-	    	  int index = i / 2;
-	    	  tilesData.add(new HashMap<String, String>());
-	    	  
-	    	  tilesData.get(index).put("name", pairs[i]);
-	    	  tilesData.get(index).put("symmetry", pairs[i + 1]);
-	      }
-	      
-
-	      
-	      return tilesData;
-	}
-	
-	static List<Map<String, String>> initNeighborsData() {
-		List<Map<String, String>> neighborsData = new ArrayList<Map<String, String>>();
-	      String[] pairs = new String[] {
-	    		  "corner 1", "empty",
-	    		  "corner", "cross",
-	    		  "corner", "cross 1",
-	    		  "corner", "line",
-	    		  "corner 1", "line 1",
-	    		  "corner", "t 2",
-	    		  "corner", "t 3",
-	    		  "corner", "t",
-	    		  "corner 1", "t 1",
-	    		  "corner 1", "corner 3",
-	    		  "corner 1", "corner",
-	    		  "corner", "corner 1",
-	    		  "corner", "corner 2",
-	    		  "cross", "cross",
-	    		  "cross", "cross 1",
-	    		  "cross 1", "cross 1",
-	    		  "cross", "line",
-	    		  "cross 1", "line",
-	    		  "cross", "t",
-	    		  "cross", "t 3",
-	    		  "cross 1", "t",
-	    		  "cross 1", "t 3",
-	    		  "empty", "empty",
-	    		  "empty", "line 1",
-	    		  "empty", "t 1",
-	    		  "line", "line",
-	    		  "line 1", "line 1",
-	    		  "line", "t",
-	    		  "line 1", "t 1",
-	    		  "line", "t 3",
-	    		  "t 1", "t 3",
-	    		  "t", "t",
-	    		  "t 2", "t",
-	    		  "t 1", "t",
-	    		  "t 3", "t 1"
-	      };
-	      
-	      for(int i = 0; i < pairs.length; i += 2) {
-	    	  int index = i / 2;
-	    	  neighborsData.add(new HashMap<String, String>());
-	    	  
-	    	  neighborsData.get(index).put("left", pairs[i]);
-	    	  neighborsData.get(index).put("right", pairs[i + 1]);
-	      }
-	      
-//	      for (HashMap<String, String> x : neighborsData) 
-//	    	  System.out.println(x);
-	      
-	      return neighborsData;
-	}
-	
-	static BufferedImage loadImage(String path) throws IOException {
-		Image knot = ImageIO.read(new File(path));
-		return (BufferedImage) knot;
+	/**
+	 * Returns a model over a subset of the knot tileset, read from ./knot with
+	 * its data.xml.
+	 */
+	static SimpleTiledModel loadTiledModel(String subset, int width, int height, boolean periodic) throws IOException {
+	      return Tileset.load(Paths.get("knot")).model(subset, width, height, periodic);
 	}
 	
 	static void runTiledModel(String subset) {
@@ -108,62 +33,19 @@ public class Main {
 	    boolean periodic = true;
 
 	    try {
-	      int tilesize = 10;
-	      
-	      List<Map<String, String>> tiles = initTilesData();
-	      List<Map<String, String>> neighborsData = initNeighborsData();
-	      Map<String, String[]> subsetsData = new HashMap<String, String[]>();
-	      subsetsData.put("Standard", new String[] {"corner", "cross", "empty", "line", "t"});
-	      subsetsData.put("Crossless", new String[] {"corner", "empty", "line",});
-	      subsetsData.put("TE", new String[] { "empty", "t"});
-	      subsetsData.put("T", new String[] {"t"});
-	      subsetsData.put("CL", new String[] {"corner", "line" });
-	      subsetsData.put("CE", new String[] {"corner","empty", });
-	      subsetsData.put("C", new String[] {"corner"});
-	      subsetsData.put("Fabric", new String[] {"cross","line"});
-	      subsetsData.put("Dense Fabric", new String[] {"cross" });
-	      subsetsData.put("Dense", new String[] {"corner", "cross", "line"});
-
-	      
-	      Map<String, BufferedImage> tileData = new HashMap<String, BufferedImage>();
-	      String[] tileNames = new String[] {
-	    		  "corner",
-	    		  "cross",
-	    		  "empty",
-	    		  "line",
-	    		  "t"
-	      };
-	      for(String tile : tileNames) {
-	    	  String path = "./knot/" + tile + ".png";    	
-	    	  tileData.put(tile, loadImage(path));
-	      }
+	      SimpleTiledModel tiled_model = loadTiledModel(subset, width, height, periodic);
 	      Random random = new Random();
 	      
-	      SimpleTiledModel tiled_model = new SimpleTiledModel(
-	        tilesize,
-	        tiles,
-	        neighborsData,
-	        subsetsData,
-	        tileData,
-	        subset,
-	        width,
-	        height,
-	        periodic,
-	        false,
-	        false
-	      );
-	      
-	      Boolean finished = false;
+	      int[] seeds = new int[10];
+	      for (int i = 0; i < seeds.length; i++) seeds[i] = random.nextInt();
 
-			for (int i = 0; i < 10; i++) {
-				finished = tiled_model.run(random.nextInt(), 0);
-				if (finished) break;
-			}
+	      SimpleTiledModel solved = Portfolio.run(tiled_model, seeds);
+	      Boolean finished = solved != null;
 
 			System.out.println("Finished: " + finished);
 			if (!finished) return;
 	      
-	      BufferedImage output = tiled_model.graphics();
+	      BufferedImage output = solved.graphics();
 	      
 	      File output_file = new File("image_out.png");
 	      ImageIO.write(output, "png", output_file);
@@ -173,6 +55,163 @@ public class Main {
 	    }
 	}
 	
+	/**
+	 * Compares the mean time to a solution, restarting from scratch on every
+	 * contradiction against backtracking, for every knot subset.
+	 * Runs that still fail after 100 seeds are counted as unsolved.
+	 */
+	static void benchmarkBacktracking(int width, int height, int runs, int backtrackLimit) {
+	    try {
+	      for (String subset : Tileset.load(Paths.get("knot")).subsets()) {
+	    	  SimpleTiledModel model = loadTiledModel(subset, width, height, true);
+	    	  
+	    	  for (int limit : new int[] { 0, backtrackLimit }) {
+	    		  model.setBacktracking(limit);
+	    		  long total = 0;
+	    		  int solved = 0, attempts = 0;
+	    		  
+	    		  for (int run = 0; run < runs; run++) {
+	    			  long start = System.nanoTime();
+	    			  for (int seed = 0; seed < 100; seed++) {
+	    				  attempts++;
+	    				  if (model.run(run * 100 + seed, 0)) {
+	    					  solved++;
+	    					  break;
+	    				  }
+	    			  }
+	    			  total += System.nanoTime() - start;
+	    		  }
+	    		  
+	    		  System.out.println(String.format(
+	    			"%-12s %-9s mean %8.2f ms, %d/%d solved, %.2f attempts per run",
+	    			subset,
+	    			limit == 0 ? "restart" : "backtrack",
+	    			total / 1e6 / runs,
+	    			solved,
+	    			runs,
+	    			(double) attempts / runs
+	    		  ));
+	    	  }
+	      }
+	    } catch (Exception e) {
+	      e.printStackTrace();
+	    }
+	}
+	
+	static void benchmarkPropagation(String fileName, int size, int runs) {
+	    try {
+			BufferedImage image_buffered = ImageIO.read(new File(fileName));
+			OverlappingModel model = new OverlappingModel(image_buffered, 3, size, size, true, false, 2, 102);
+			long[] sequential = null;
+
+			for (int threads : new int[] { 1, 2, 4, 8, 16, 32 }) {
+				model.setPropagationThreads(threads);
+				long clear = 0, total = 0;
+				boolean same = true;
+
+				for (int run = 0; run < runs; run++) {
+					long start = System.nanoTime();
+					model.begin(run);
+					clear += System.nanoTime() - start;
+
+					// The ground bans start one wave over the whole grid.
+					if (run == 0 && sequential == null) sequential = model.wave.bits.clone();
+					else if (run == 0) same = Arrays.equals(sequential, model.wave.bits);
+
+					model.resume(0, null);
+					total += System.nanoTime() - start;
+				}
+
+				System.out.println(String.format(
+					"%2d threads: first wave %8.2f ms, run %8.2f ms, same wave as 1 thread: %b",
+					threads,
+					clear / 1e6 / runs,
+					total / 1e6 / runs,
+					same
+				));
+			}
+			model.setPropagationThreads(1);
+	    } catch (Exception e) {
+	      e.printStackTrace();
+	    }
+	}
+	
+	/**
+	 * Air, ground, grass on top of the ground, and trunks and leaves of trees
+	 * standing on grass.
+	 */
+	static VoxelModel initVoxelModel(int size) {
+		int AIR = 0, GROUND = 1, GRASS = 2, TRUNK = 3, LEAVES = 4;
+		double[] weights = { 8.0, 4.0, 1.0, 0.2, 1.0 };
+
+		int[][] flat = {
+			{ AIR, AIR }, { GROUND, GROUND }, { GRASS, GRASS }, { GRASS, AIR }, { AIR, GRASS },
+			{ GROUND, GRASS }, { GRASS, GROUND }, { TRUNK, AIR }, { AIR, TRUNK },
+			{ TRUNK, LEAVES }, { LEAVES, TRUNK }, { LEAVES, LEAVES }, { LEAVES, AIR }, { AIR, LEAVES }
+		};
+		int[][] up = {
+			{ AIR, AIR }, { GROUND, GROUND }, { GROUND, GRASS }, { GRASS, AIR }, { GRASS, TRUNK },
+			{ TRUNK, TRUNK }, { TRUNK, LEAVES }, { LEAVES, LEAVES }, { LEAVES, AIR }
+		};
+
+		return new VoxelModel(weights, VoxelModel.propagator(5, flat, flat, up), size, size, size, true);
+	}
+
+	static void benchmarkVoxels(int runs) {
+		for (int size : new int[] { 64, 128 }) {
+			VoxelModel model = initVoxelModel(size);
+			long total = 0;
+			int solved = 0;
+
+			for (int run = 0; run < runs; run++) {
+				long start = System.nanoTime();
+				if (model.run(run, 0)) solved++;
+				total += System.nanoTime() - start;
+			}
+
+			System.out.println(String.format(
+				"%d^3: mean %8.2f ms, %.2f Mvoxels/s, %d/%d solved",
+				size,
+				total / 1e6 / runs,
+				(double) size * size * size * runs / (total / 1e3),
+				solved,
+				runs
+			));
+		}
+	}
+	
+	static void benchmarkHeuristics(int width, int height, int runs) {
+	    try {
+	      for (String subset : Tileset.load(Paths.get("knot")).subsets()) {
+	    	  SimpleTiledModel model = loadTiledModel(subset, width, height, true);
+	    	  
+	    	  for (Heuristic heuristic : Heuristic.values()) {
+	    		  model.setHeuristic(heuristic);
+	    		  model.run(0, 0);
+	    		  long total = 0;
+	    		  int contradictions = 0;
+	    		  
+	    		  for (int seed = 0; seed < runs; seed++) {
+	    			  long start = System.nanoTime();
+	    			  if (!model.run(seed, 0)) contradictions++;
+	    			  total += System.nanoTime() - start;
+	    		  }
+	    		  
+	    		  System.out.println(String.format(
+	    			"%-12s %-24s %8.3f ms/run, %8.0f runs/s, %5.1f%% contradictions",
+	    			subset,
+	    			heuristic,
+	    			total / 1e6 / runs,
+	    			runs / (total / 1e9),
+	    			100.0 * contradictions / runs
+	    		  ));
+	    	  }
+	      }
+	    } catch (Exception e) {
+	      e.printStackTrace();
+	    }
+	}
+	
 	static void runOverlappingModel(String fileName) {
 	    try {
 			BufferedImage image_buffered = ImageIO.read(new File(fileName));
@@ -189,17 +228,16 @@ public class Main {
 				102
 			);
 
-			Boolean finished = false;
+			int[] seeds = new int[10];
+			for (int i = 0; i < seeds.length; i++) seeds[i] = random.nextInt();
 
-			for (int i = 0; i < 10; i++) {
-				finished = model.run(random.nextInt(), 0);
-				if (finished) break;
-			}
+			OverlappingModel solved = Portfolio.run(model, seeds);
+			Boolean finished = solved != null;
 
 			System.out.println("Finished: " + finished);
 			if (!finished) return;
 
-			BufferedImage output = model.graphics();
+			BufferedImage output = solved.graphics();
 
 			File output_file = new File("image_out.png");
 			ImageIO.write(output, "png", output_file);
@@ -208,8 +246,64 @@ public class Main {
 	    }
 	}
 	
+	static void runChunkedModel(String fileName) {
+	    try {
+			BufferedImage image_buffered = ImageIO.read(new File(fileName));
+
+			OverlappingModel model = new OverlappingModel(
+				image_buffered,
+				3,
+				64,
+				64,
+				true,
+				false,
+				2,
+				0
+			);
+
+			ChunkedModel chunked = new ChunkedModel(model, 64, 64, 16, new Random().nextInt());
+			boolean finished = chunked.generate(16, ChunkedModel.writeTo(new File("chunks_out")));
+
+			System.out.println("Finished: " + finished);
+	    } catch (Exception e) {
+	      e.printStackTrace();
+	    }
+	}
+	
+	static void runBatch(String subset, int count) {
+		ExecutorService ex = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	    try {
+			SimpleTiledModel tiled_model = loadTiledModel(subset, 10, 10, false);
+			Batch<SimpleTiledModel> batch = new Batch<SimpleTiledModel>(tiled_model, ex);
+
+			Random random = new Random();
+			for (int i = 0; i < count; i++) batch.submit(random.nextInt());
+
+			File directory = new File("batch_out");
+			directory.mkdirs();
+			for (Batch.Result<SimpleTiledModel> result = batch.take(); result != null; result = batch.take()) {
+				System.out.println("Seed " + result.seed + " finished: " + result.solved());
+				if (result.solved()) ImageIO.write(
+					result.model.graphics(),
+					"png",
+					new File(directory, "batch_" + result.seed + ".png")
+				);
+			}
+	    } catch (Exception e) {
+	      e.printStackTrace();
+	    } finally {
+	      ex.shutdown();
+	    }
+	}
+	
   public static void main(String[] args) {
 	// runTiledModel("Dense Fabric");
+	// runChunkedModel("citytemplate.png");
+	// benchmarkBacktracking(48, 48, 20, 1000);
+	// runBatch("Dense Fabric", 100);
+	// benchmarkPropagation("citytemplate.png", 512, 5);
+	// benchmarkVoxels(5);
+	// benchmarkHeuristics(32, 32, 200);
     runOverlappingModel("citytemplate.png");
   }
 }
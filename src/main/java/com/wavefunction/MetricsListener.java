@@ -0,0 +1,17 @@
+package com.wavefunction;
+
+/**
+ * Gets the metrics of every run of a model.
+ * @see SolverMetrics
+ */
+@FunctionalInterface
+public interface MetricsListener {
+  /**
+   * Called on the thread running the model once a run ends.
+   * @param run Counters of that run alone. Rendering happens after the run
+   * and is only in the model's totals.
+   * @param solved Whether the run was solved, rather than hitting a
+   * contradiction or being cancelled.
+   */
+  void finished(SolverMetrics.Snapshot run, boolean solved);
+}
@@ -2,58 +2,138 @@ package com.wavefunction;
 
 import java.awt.image.BufferedImage;
 import java.lang.Math;
+import java.util.Arrays;
 import java.util.Random;
-
-class StackEntry {
-  private int x;
-  private int y;
-
-  public StackEntry(int x, int y) {
-    this.x = x;
-    this.y = y;
-  }
-
-  public int getFirst() {
-    return this.x;
-  }
-
-  public int getSecond() {
-    return this.y;
-  }
-}
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 abstract class Model {
-  protected boolean[][] wave;
-  protected int[][][] propagator;
-  int[][][] compatible;
+  protected Ruleset rules;
+  protected Wave wave;
+  int[] compatible;
   protected int[] observed;
 
-  StackEntry[] stack;
+  long[] stack;
   int stacksize;
+  double[] distribution;
 
   protected Random random;
+  int seed;
   protected int FMX, FMY, T;
   protected boolean periodic;
-  protected Double[] weights;
-  double[] weightLogWeights;
 
   int[] sumsOfOnes;
-  double sumOfWeights, sumOfWeightLogWeights, startingEntropy;
-  double[] sumsOfWeights, sumsOfWeightLogWeights, entropies;
+  // Output cells, and those of them left with a single pattern.
+  int cells, collapsed;
+
+  Heuristic heuristic = Heuristic.ENTROPY;
+  boolean linearScan;
+  CellSelector selector;
+  boolean contradiction;
+
+  Constraints constraints;
+
+  Trail trail;
+  // Kept across runs so that each backtracking run reuses its arrays.
+  private Trail spareTrail;
+  int backtrackLimit, backtracks;
+
+  ExecutorService propagationPool;
+  boolean ownsPropagationPool;
+  // Set once a fork got the pool, which is then never shut down.
+  volatile boolean propagationPoolForked;
+  int propagationThreads;
+  ParallelPropagator parallel;
+
+  StepObserver observer;
+  Checkpoint checkpoint;
+  SolverMetrics metrics;
+  int[] dirty;
+  boolean[] dirtyMarks;
+  int dirtyCount;
 
   protected Model(int width, int height) {
     this.FMX = width;
     this.FMY = height;
   }
 
+  /**
+   * Creates a model that shares the ruleset of another one but owns fresh
+   * run state.
+   * @param rules Model whose rules are shared. Must not be modified afterwards.
+   * @param width The width of the new model's output.
+   * @param height The height of the new model's output.
+   */
+  protected Model(Model rules, int width, int height) {
+    this(width, height);
+    this.rules = rules.rules;
+    this.T = rules.T;
+    this.periodic = rules.periodic;
+    this.heuristic = rules.heuristic;
+    this.linearScan = rules.linearScan;
+    this.backtrackLimit = rules.backtrackLimit;
+    this.propagationPool = rules.propagationPool;
+    this.propagationThreads = rules.propagationThreads;
+    if (this.propagationPool != null) rules.propagationPoolForked = true;
+    if (
+      width == rules.FMX && height == rules.FMY
+    ) this.constraints = rules.constraints;
+  }
+
+  /**
+   * Returns a new model over the same rules with its own wave, so several
+   * seeds can run at the same time.
+   */
+  public Model fork() {
+    return this.fork(this.FMX, this.FMY);
+  }
+
+  /**
+   * Same as fork() with a different output size.
+   */
+  public abstract Model fork(int width, int height);
+
+  /**
+   * Returns a non-periodic fork used to solve one chunk of a ChunkedModel,
+   * without the constraints of the whole output.
+   * Every cell in the top-left width x height region is a real cell; the
+   * model may be larger when its patterns reach past a cell.
+   */
+  Model forkChunk(int width, int height) {
+    Model chunk = this.fork(width, height);
+    chunk.periodic = false;
+    chunk.constraints = null;
+    return chunk;
+  }
+
   protected abstract boolean onBoundary(int x, int y);
 
   public abstract BufferedImage graphics();
 
+  /**
+   * Size in pixels of the images drawn by graphics() and draw().
+   */
+  abstract int frameWidth();
+
+  abstract int frameHeight();
+
+  /**
+   * Redraws into an ARGB frame of frameWidth() x frameHeight() pixels every
+   * pixel that depends on the first count cells, from their current wave.
+   */
+  abstract void draw(int[] frame, int[] cells, int count);
+
   protected static int[] DX = { -1, 0, 1, 0 };
   protected static int[] DY = { 0, 1, 0, -1 };
   static int[] oppposite = { 2, 3, 0, 1 };
 
+  /**
+   * Pending bans above which propagate() hands the stack to the parallel
+   * propagator, if there is one. Smaller waves are cheaper on one thread.
+   */
+  static final int PARALLEL_THRESHOLD = 4096;
+
   static int randomIndice(double[] arr, double r) {
     double sum = 0;
 
@@ -73,113 +153,286 @@ abstract class Model {
     return 0;
   }
 
+  /**
+   * Packs a (cell, pattern) pair into one long so the propagation stack
+   * never allocates.
+   */
+  static long stackEntry(int i, int t) {
+    return ((long) i << 32) | (t & 0xffffffffL);
+  }
+
+  static int stackCell(long entry) {
+    return (int) (entry >>> 32);
+  }
+
+  static int stackPattern(long entry) {
+    return (int) entry;
+  }
+
   public static long toPower(int a, int n) {
     long product = 1;
     for (int i = 0; i < n; i++) product *= a;
     return product;
   }
 
-  void init() {
-    this.wave = new boolean[this.FMX * this.FMY][];
-    this.compatible = new int[this.wave.length][][];
-    for (int i = 0; i < wave.length; i++) {
-      this.wave[i] = new boolean[this.T];
-      this.compatible[i] = new int[this.T][];
-      for (int t = 0; t < this.T; t++) this.compatible[i][t] = new int[4];
+  /**
+   * Fills dest with repeated copies of template, doubling the copied run each
+   * pass so the whole array is written with a handful of bulk copies.
+   */
+  static void fillFromTemplate(int[] dest, int[] template) {
+    int length = Math.min(template.length, dest.length);
+    System.arraycopy(template, 0, dest, 0, length);
+
+    for (int filled = length; filled < dest.length; filled *= 2) {
+      System.arraycopy(
+        dest,
+        0,
+        dest,
+        filled,
+        Math.min(filled, dest.length - filled)
+      );
     }
+  }
+
+  /**
+   * Number of cells past the last column and row a cell's pattern reaches,
+   * which is where a non-periodic output's boundary starts.
+   */
+  int overlap() {
+    return 0;
+  }
 
-    this.weightLogWeights = new double[this.T];
-    this.sumOfWeights = 0;
-    this.sumOfWeightLogWeights = 0;
+  /**
+   * Pattern that fills the bottom row and is banned everywhere else, or 0
+   * for none.
+   */
+  int ground() {
+    return 0;
+  }
 
-    for (int t = 0; t < this.T; t++) {
-      this.weightLogWeights[t] = this.weights[t] * Math.log(this.weights[t]);
-      this.sumOfWeights += this.weights[t];
-      this.sumOfWeightLogWeights += this.weightLogWeights[t];
+  void init() {
+    if ((long) this.FMX * this.FMY * this.T * 4 > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+        "Output of " + this.FMX + "x" + this.FMY + " with " + this.T +
+        " patterns is too large for arrays, use OffHeapModel"
+      );
     }
 
-    this.startingEntropy =
-      Math.log(this.sumOfWeights) -
-        this.sumOfWeightLogWeights /
-        this.sumOfWeights;
+    this.wave = new Wave(this.FMX * this.FMY, this.T);
+    this.compatible = new int[this.wave.length * this.T * 4];
 
     this.sumsOfOnes = new int[this.FMX * this.FMY];
-    this.sumsOfWeights = new double[this.FMX * this.FMY];
-    this.sumsOfWeightLogWeights = new double[this.FMX * this.FMY];
-    this.entropies = new double[this.FMX * this.FMY];
+    this.cells = 0;
+    for (int i = 0; i < this.wave.length; i++) if (
+      !this.onBoundary(i % this.FMX, i / this.FMX)
+    ) this.cells++;
 
-    this.stack = new StackEntry[this.wave.length * this.T];
+    this.stack = new long[this.wave.length * this.T];
     this.stacksize = 0;
+    this.distribution = new double[this.T];
+
+  }
+
+  /**
+   * Selects how observe() chooses the next cell to collapse.
+   * Takes effect on the next run.
+   * @param heuristic The heuristic, Heuristic.ENTROPY by default.
+   */
+  public void setHeuristic(Heuristic heuristic) {
+    this.heuristic = heuristic;
+    this.selector = null;
+  }
+
+  /**
+   * Selects how the entropy heuristic finds the next cell to collapse.
+   * By default an indexed min-heap over the entropies is kept up to date by
+   * ban(); passing true switches back to scanning every cell on every step.
+   * Takes effect on the next run.
+   * @param linearScan Whether to scan all cells instead of using the heap.
+   */
+  public void setLinearScan(boolean linearScan) {
+    this.linearScan = linearScan;
+    this.selector = null;
+  }
+
+  /**
+   * Enables backtracking. When an observation leads to a contradiction the
+   * wave is rewound to just before the last observation, the chosen pattern
+   * is banned and the run goes on, instead of the whole run failing.
+   * Every ban and counter change is then recorded, which costs memory.
+   * Takes effect on the next run.
+   * @param limit Maximum number of backtracks per run, 0 to disable.
+   */
+  public void setBacktracking(int limit) {
+    this.backtrackLimit = limit;
+  }
+
+  /**
+   * Lets propagation waves that grow past PARALLEL_THRESHOLD pending bans run
+   * on several threads, each owning a band of rows (see ParallelPropagator).
+   * The wave reached is the same as with sequential propagation. Runs with
+   * backtracking always propagate sequentially.
+   * Forks share the thread pool. The pool created by the previous call is
+   * shut down, unless forks got it: they keep using it, and its threads
+   * end on their own once it is idle. Takes effect on the next run.
+   * @param threads Number of threads, 1 or less for sequential propagation.
+   */
+  public void setPropagationThreads(int threads) {
+    this.setPropagationThreads(
+      threads,
+      threads > 1 ? new ForkJoinPool(threads) : null
+    );
+    this.ownsPropagationPool = this.propagationPool != null;
+  }
+
+  /**
+   * Like setPropagationThreads(int), but runs the bands on pool, which the
+   * caller keeps and shuts down. Workers never wait for each other, so pool
+   * may have fewer threads than there are bands.
+   * @param threads Number of bands, 1 or less for sequential propagation.
+   * @param pool Executor of the bands, ignored for sequential propagation.
+   */
+  public void setPropagationThreads(int threads, ExecutorService pool) {
+    if (
+      this.ownsPropagationPool &&
+      !this.propagationPoolForked &&
+      this.propagationPool != pool
+    ) this.propagationPool.shutdown();
+    this.ownsPropagationPool = false;
+    this.propagationPoolForked = false;
+    this.propagationThreads = pool != null ? threads : 1;
+    this.propagationPool = threads > 1 ? pool : null;
+    this.parallel = null;
+  }
+
+  /**
+   * Starts the next runs from the given constraints, or from an empty wave if
+   * null. Forks of the same size keep them.
+   * @see Constraints
+   */
+  public void setConstraints(Constraints constraints) {
+    if (
+      constraints != null &&
+      (
+        constraints.width != this.FMX ||
+        constraints.height != this.FMY ||
+        constraints.T != this.T
+      )
+    ) throw new IllegalArgumentException("Constraints made for another model");
+    this.constraints = constraints;
+  }
+
+  /**
+   * Sets an observer notified after every step of the next runs with the
+   * cells that changed, or null to remove it.
+   */
+  public void setObserver(StepObserver observer) {
+    this.observer = observer;
+  }
+
+  /**
+   * Counts and times the phases of the next runs into metrics, or stops
+   * if null. Forks do not share them.
+   */
+  public void setMetrics(SolverMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  private void markDirty(int i) {
+    if (this.dirtyMarks[i]) return;
+    this.dirtyMarks[i] = true;
+    this.dirty[this.dirtyCount++] = i;
+  }
+
+  private void notifyObserver() {
+    this.observer.step(this.dirty, this.dirtyCount);
+    for (int k = 0; k < this.dirtyCount; k++) this.dirtyMarks[this.dirty[k]] =
+      false;
+    this.dirtyCount = 0;
   }
 
   Boolean observe() {
-    double min = 1e+3;
-    int argmin = -1;
-
-    for (int i = 0; i < this.wave.length; i++) {
-      if (this.onBoundary(i % this.FMX, i / this.FMX)) continue;
-
-      int amount = this.sumsOfOnes[i];
-      if (amount == 0) return false;
-      
-
-      double entropy = this.entropies[i];
-            
-      if (amount > 1 && entropy <= min) {
-        double noise = 1e-6 * this.random.nextDouble();
-        if (entropy + noise < min) {
-          min = entropy + noise;
-          argmin = i;
-        }
-      }
-    }
-    
+    if (this.contradiction) return false;
+
+    int argmin = this.selector.next();
+    if (argmin == -2) return false;
 
     if (argmin == -1) {
       this.observed = new int[this.FMX * this.FMY];
-      for (int i = 0; i < this.wave.length; i++) for (int t = 0; t <
-        this.T; t++) if (this.wave[i][t]) {
-        this.observed[i] = t;
-        break;
-      }
+      for (int i = 0; i < this.wave.length; i++) this.observed[i] =
+        Math.max(this.wave.first(i), 0);
       return true;
     }
 
-    double[] distribution = new double[this.T];
+    double[] distribution = this.distribution;
     for (int t = 0; t < this.T; t++) distribution[t] =
-      this.wave[argmin][t] ? this.weights[t] : 0;
+      this.wave.get(argmin, t) ? this.rules.weights[t] : 0;
 
     int r = Model.randomIndice(distribution, this.random.nextDouble());
+    if (this.trail != null) this.trail.decide(argmin, r);
 
-
-    boolean[] w = this.wave[argmin];
-    for (int t = 0; t < this.T; t++) if (w[t] != (t == r)) this.ban(argmin, t);
+    for (int t = 0; t < this.T; t++) if (
+      this.wave.get(argmin, t) != (t == r)
+    ) this.ban(argmin, t);
 
     return null;
   }
 
   protected void ban(int i, int t) {
-    this.wave[i][t] = false;
+    this.wave.clear(i, t);
 
-    int[] comp = this.compatible[i][t];
-    for (int d = 0; d < 4; d++) comp[d] = 0;
-    this.stack[this.stacksize] = new StackEntry(i, t);
+    int comp = (i * this.T + t) * 4;
+    if (this.trail != null) this.trail.ban(i, t, this.compatible, comp);
+    this.stack[this.stacksize] = Model.stackEntry(i, t);
     this.stacksize++;
+    if (this.metrics != null) this.metrics.pushed(this.stacksize);
+
+    this.banned(i, t);
+  }
 
-    this.sumsOfOnes[i] -= 1;
-    this.sumsOfWeights[i] -= this.weights[t];
-    this.sumsOfWeightLogWeights[i] -= this.weightLogWeights[t];
+  /**
+   * Does the bookkeeping of a ban once t has been cleared from cell i: clears
+   * its counters and updates sumsOfOnes and the cell selector.
+   */
+  void banned(int i, int t) {
+    if (this.observer != null) this.markDirty(i);
+    if (this.metrics != null) this.metrics.bans++;
+    if (this.checkpoint != null) this.checkpoint.changed(i);
+
+    int comp = (i * this.T + t) * 4;
+    for (int d = 0; d < 4; d++) this.compatible[comp + d] = 0;
+
+    int amount = --this.sumsOfOnes[i];
+    if (amount <= 1 && !this.onBoundary(i % this.FMX, i / this.FMX)) {
+      if (amount == 1) this.collapsed++; else {
+        this.collapsed--;
+        this.contradiction = true;
+      }
+    }
 
-    double sum = this.sumsOfWeights[i];
-    this.entropies[i] = Math.log(sum) - this.sumsOfWeightLogWeights[i] / sum;
+    this.selector.banned(i, t, amount);
   }
 
   protected void propagate() {
-    while (this.stacksize > 0) {
-      StackEntry e1 = this.stack[this.stacksize - 1];
+    int pops = 0;
+
+    while (this.stacksize > 0 && !this.contradiction) {
+      if (
+        this.parallel != null &&
+        this.trail == null &&
+        this.stacksize >= Model.PARALLEL_THRESHOLD
+      ) {
+        pops += this.stacksize;
+        pops += this.parallel.propagate();
+        break;
+      }
+
+      long e1 = this.stack[this.stacksize - 1];
       this.stacksize--;
+      pops++;
 
-      int i1 = e1.getFirst();
+      int i1 = Model.stackCell(e1);
+      int t1 = Model.stackPattern(e1);
       int x1 = i1 % this.FMX;
       int y1 = i1 / this.FMX;
 
@@ -193,48 +446,219 @@ abstract class Model {
         if (y2 < 0) y2 += this.FMY; else if (y2 >= this.FMY) y2 -= this.FMY;
 
         int i2 = x2 + y2 * this.FMX;
-        int[] p = this.propagator[d][e1.getSecond()];
-        int[][] compat = this.compatible[i2];
+        int[] p = this.rules.propagator[d][t1];
+        int compat = i2 * this.T * 4 + d;
 
         for (int l = 0; l < p.length; l++) {
           int t2 = p[l];
-          int[] comp = compat[t2];
+          int index = compat + t2 * 4;
 
-          comp[d]--;
-          
-          if (comp[d] == 0) this.ban(i2, t2);
+          if (this.trail != null) this.trail.decrement(index);
+          if (--this.compatible[index] == 0) this.ban(i2, t2);
         }
       }
     }
+
+    if (this.metrics != null) this.metrics.pops += pops;
+  }
+
+  /**
+   * Undoes the last observation and bans the pattern it chose.
+   * @return false if backtracking is disabled, its limit is reached or there
+   * is no observation left to undo.
+   */
+  boolean backtrack() {
+    if (
+      this.trail == null ||
+      this.trail.depth() == 0 ||
+      this.backtracks >= this.backtrackLimit
+    ) return false;
+
+    this.backtracks++;
+    if (this.metrics != null) this.metrics.backtracks++;
+    long decision = this.trail.popDecision();
+    this.rewind(this.trail.mark());
+
+    this.ban(Model.stackCell(decision), Model.stackPattern(decision));
+    this.propagate();
+    return true;
+  }
+
+  void rewind(int mark) {
+    this.stacksize = 0;
+    this.contradiction = false;
+
+    while (this.trail.size() > mark) {
+      long entry = this.trail.pop();
+      if (entry < 0) {
+        this.compatible[(int) ~entry]++;
+        continue;
+      }
+
+      int i = Model.stackCell(entry), t = Model.stackPattern(entry);
+      long c23 = this.trail.pop(), c01 = this.trail.pop();
+      int comp = (i * this.T + t) * 4;
+      this.compatible[comp] = (int) (c01 >>> 32);
+      this.compatible[comp + 1] = (int) c01;
+      this.compatible[comp + 2] = (int) (c23 >>> 32);
+      this.compatible[comp + 3] = (int) c23;
+
+      this.unban(i, t);
+    }
+  }
+
+  private void unban(int i, int t) {
+    this.wave.set(i, t);
+    if (this.observer != null) this.markDirty(i);
+    if (this.checkpoint != null) this.checkpoint.changed(i);
+
+    int amount = ++this.sumsOfOnes[i];
+    if (
+      amount <= 2 && !this.onBoundary(i % this.FMX, i / this.FMX)
+    ) this.collapsed += amount == 1 ? 1 : -1;
+    this.selector.unbanned(i, t, amount);
   }
 
   public boolean run(int seed, int limit) {
-    if (this.wave == null) this.init();
-    
-    this.Clear();
+    return this.run(seed, limit, null);
+  }
+
+  /**
+   * Runs the model like run(seed, limit), giving up as soon as cancelled is set.
+   * @param cancelled Flag checked between observations, or null.
+   * @return false on a contradiction or cancellation.
+   */
+  public boolean run(int seed, int limit, AtomicBoolean cancelled) {
+    this.begin(seed);
+    return this.resume(limit, cancelled);
+  }
+
+  void begin(int seed) {
+    this.prepare();
+
+    if (this.metrics != null) this.metrics.started(seed);
     this.random = new Random(seed);
+    this.seed = seed;
+    this.trail = null;
+    if (this.constraints != null) this.constraints.restore(this); else this.Clear();
+    if (this.metrics != null) this.metrics.cleared();
+    if (this.checkpoint != null) this.checkpoint.changedAll();
+
+    this.started();
+  }
+
+  /**
+   * Allocates whatever the next run needs and is still missing.
+   */
+  void prepare() {
+    if (this.wave == null) this.init();
+    if (
+      this.propagationThreads > 1 && this.parallel == null
+    ) this.parallel = new ParallelPropagator(
+      this,
+      this.propagationThreads,
+      this.propagationPool
+    );
+    if (this.selector == null) this.selector = this.heuristic.create(this);
+
+    if (this.observer != null && this.dirty == null) {
+      this.dirty = new int[this.wave.length];
+      this.dirtyMarks = new boolean[this.wave.length];
+    }
+  }
+
+  /**
+   * Shows the whole wave to the observer and sets up backtracking, once the
+   * starting state of a run is in place.
+   */
+  void started() {
+    if (this.observer != null) {
+      for (int i = 0; i < this.wave.length; i++) this.markDirty(i);
+      this.notifyObserver();
+    }
+
+    if (this.backtrackLimit > 0) {
+      if (this.spareTrail != null) this.spareTrail.clear(); else {
+        this.spareTrail = new Trail();
+      }
+      this.trail = this.spareTrail;
+      this.backtracks = 0;
+    }
+  }
+
+  boolean resume(int limit, AtomicBoolean cancelled) {
+    Boolean result = this.advance(limit, 0, cancelled);
+    return result == null || result;
+  }
 
-    for (int l = 0; l < limit || limit == 0; l++) {
+  /**
+   * Goes on with the current run for at most steps observations or until
+   * budgetNanos have passed, whichever comes first. At least one observation
+   * is made per call, so a tiny budget still moves forward.
+   * @param steps Maximum number of observations, 0 for no limit.
+   * @param budgetNanos Maximum running time, 0 for no limit.
+   * @param cancelled Flag checked between observations, or null.
+   * @return true once solved, false on a contradiction or cancellation, null
+   * when the budget ran out first.
+   */
+  Boolean advance(int steps, long budgetNanos, AtomicBoolean cancelled) {
+    SolverMetrics metrics = this.metrics;
+    long start = budgetNanos > 0 ? System.nanoTime() : 0;
+
+    for (int l = 0; l < steps || steps == 0; l++) {
+      if (cancelled != null && cancelled.get()) return this.finished(false);
+      if (
+        budgetNanos > 0 && l > 0 && System.nanoTime() - start >= budgetNanos
+      ) return null;
+
+      if (metrics != null) metrics.mark();
       Boolean result = this.observe();
-      if (result != null) return (boolean) result;
-      this.propagate();
+      if (metrics != null) metrics.observed(result);
+
+      if (result == null) this.propagate(); else if (
+        result || !this.backtrack()
+      ) return this.finished(result);
+      if (metrics != null) metrics.propagated();
+
+      if (this.observer != null) this.notifyObserver();
     }
 
-    return true;
+    return null;
+  }
+
+  private boolean finished(boolean solved) {
+    if (this.metrics != null) this.metrics.finished(solved);
+    return solved;
+  }
+
+  /**
+   * Fraction of the output cells of the current run left with a single
+   * pattern.
+   */
+  double progress() {
+    return this.cells == 0 ? 1 : (double) this.collapsed / this.cells;
+  }
+
+  /**
+   * Counts the collapsed output cells again, after sumsOfOnes was set without
+   * ban() and unban().
+   */
+  void recount() {
+    this.collapsed = 0;
+    for (int i = 0; i < this.wave.length; i++) if (
+      this.sumsOfOnes[i] == 1 && !this.onBoundary(i % this.FMX, i / this.FMX)
+    ) this.collapsed++;
   }
 
   protected void Clear() {
-    for (int i = 0; i < this.wave.length; i++) {
-      for (int t = 0; t < this.T; t++) {
-        this.wave[i][t] = true;
-        for (int d = 0; d < 4; d++) this.compatible[i][t][d] =
-          this.propagator[Model.oppposite[d]][t].length;
-      }
+    this.wave.fill();
+    Model.fillFromTemplate(this.compatible, this.rules.compatibleTemplate);
 
-      this.sumsOfOnes[i] = this.weights.length;
-      this.sumsOfWeights[i] = this.sumOfWeights;
-      this.sumsOfWeightLogWeights[i] = this.sumOfWeightLogWeights;
-      this.entropies[i] = this.startingEntropy;
-    }
+    Arrays.fill(this.sumsOfOnes, this.T);
+    this.collapsed = this.T == 1 ? this.cells : 0;
+
+    this.contradiction = false;
+    this.stacksize = 0;
+    this.selector.clear();
   }
 }
@@ -0,0 +1,141 @@
+package com.wavefunction;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Growable off-heap memory addressed by long byte offsets, made of direct
+ * ByteBuffers of CHUNK bytes each, so it is not bound by the 2^31 limit of
+ * Java arrays and is never copied or scanned by the garbage collector.
+ *
+ * Values are naturally aligned, so none straddles two chunks. A buffer
+ * smaller than one chunk is a single buffer of its own size.
+ */
+final class OffHeapBuffer {
+  static final int CHUNK_SHIFT = 30;
+  static final long CHUNK = 1L << CHUNK_SHIFT;
+  private static final long CHUNK_MASK = CHUNK - 1;
+
+  private ByteBuffer[] chunks = new ByteBuffer[0];
+  private long capacity;
+
+  OffHeapBuffer(long bytes) {
+    this.ensure(bytes);
+  }
+
+  long capacity() {
+    return this.capacity;
+  }
+
+  /**
+   * Grows the buffer to at least bytes, keeping its content.
+   */
+  void ensure(long bytes) {
+    if (bytes <= this.capacity) return;
+
+    if (this.capacity < CHUNK) {
+      // Single partial chunk: reallocate it, at least doubling it.
+      long size = Math.min(CHUNK, Math.max(bytes, this.capacity * 2));
+      size = (size + 7) & ~7L;
+      ByteBuffer chunk = OffHeapBuffer.allocate((int) size);
+      if (this.chunks.length == 1) chunk.put(this.chunks[0].duplicate().clear());
+      this.chunks = new ByteBuffer[] { chunk };
+      this.capacity = size;
+    }
+
+    while (this.capacity < bytes) {
+      this.chunks = Arrays.copyOf(this.chunks, this.chunks.length + 1);
+      this.chunks[this.chunks.length - 1] = OffHeapBuffer.allocate((int) CHUNK);
+      this.capacity += CHUNK;
+    }
+  }
+
+  private static ByteBuffer allocate(int size) {
+    return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+  }
+
+  byte getByte(long offset) {
+    return this.chunks[(int) (offset >>> CHUNK_SHIFT)].get((int) (offset & CHUNK_MASK));
+  }
+
+  void putByte(long offset, byte value) {
+    this.chunks[(int) (offset >>> CHUNK_SHIFT)].put((int) (offset & CHUNK_MASK), value);
+  }
+
+  short getShort(long offset) {
+    return this.chunks[(int) (offset >>> CHUNK_SHIFT)].getShort(
+        (int) (offset & CHUNK_MASK)
+      );
+  }
+
+  void putShort(long offset, short value) {
+    this.chunks[(int) (offset >>> CHUNK_SHIFT)].putShort(
+        (int) (offset & CHUNK_MASK),
+        value
+      );
+  }
+
+  int getInt(long offset) {
+    return this.chunks[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & CHUNK_MASK));
+  }
+
+  void putInt(long offset, int value) {
+    this.chunks[(int) (offset >>> CHUNK_SHIFT)].putInt((int) (offset & CHUNK_MASK), value);
+  }
+
+  long getLong(long offset) {
+    return this.chunks[(int) (offset >>> CHUNK_SHIFT)].getLong(
+        (int) (offset & CHUNK_MASK)
+      );
+  }
+
+  void putLong(long offset, long value) {
+    this.chunks[(int) (offset >>> CHUNK_SHIFT)].putLong(
+        (int) (offset & CHUNK_MASK),
+        value
+      );
+  }
+
+  double getDouble(long offset) {
+    return this.chunks[(int) (offset >>> CHUNK_SHIFT)].getDouble(
+        (int) (offset & CHUNK_MASK)
+      );
+  }
+
+  void putDouble(long offset, double value) {
+    this.chunks[(int) (offset >>> CHUNK_SHIFT)].putDouble(
+        (int) (offset & CHUNK_MASK),
+        value
+      );
+  }
+
+  /**
+   * Fills the first bytes of the buffer with copies of pattern, back to back.
+   * @param pattern Bytes repeated from its position to its limit.
+   */
+  void fill(ByteBuffer pattern, long bytes) {
+    // Repeat the pattern into a block of about 64 KiB so copies stay large.
+    int period = pattern.remaining();
+    ByteBuffer block = OffHeapBuffer.allocate(Math.max(1, 65536 / period) * period);
+    while (block.hasRemaining()) block.put(pattern.duplicate());
+    block.flip();
+
+    for (long offset = 0; offset < bytes;) {
+      ByteBuffer chunk = this.chunks[(int) (offset >>> CHUNK_SHIFT)].duplicate();
+      int at = (int) (offset & CHUNK_MASK);
+      // Where the pattern starts over inside the block at this offset.
+      int phase = (int) (offset % period);
+      int length = (int) Math.min(
+        Math.min(bytes - offset, chunk.capacity() - at),
+        block.limit() - phase
+      );
+
+      chunk.position(at);
+      ByteBuffer source = block.duplicate();
+      source.position(phase).limit(phase + length);
+      chunk.put(source);
+      offset += length;
+    }
+  }
+}
@@ -0,0 +1,347 @@
+package com.wavefunction;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Runs the rules of a Model on outputs too large for its on-heap arrays,
+ * such as 4096x4096 cells with hundreds of patterns.
+ *
+ * The wave, the compatibility counters, the per-cell entropy sums and the
+ * propagation stack live in OffHeapBuffers indexed by long offsets, so they
+ * are only bound by the number of cells (at most 2^31) and by the direct
+ * memory limit (-XX:MaxDirectMemorySize), not by the array size limit, and
+ * never add to garbage collection pauses. Counters take 1, 2 or 4 bytes
+ * depending on the largest count of the rules. Only the entropy heap, 16
+ * bytes per cell, stays on the Java heap.
+ *
+ * Observation uses the entropy heuristic with seed-derived noise, like
+ * VoxelModel; the heuristic of the rules model is not used. The ground
+ * pattern of an OverlappingModel is banned like in its Clear(). Nothing else
+ * set on the rules model carries over: there is no backtracking, no
+ * constraints, no observer, no metrics and no checkpoints.
+ */
+public final class OffHeapModel {
+  private static final int SUMS_STRIDE = 24;
+
+  private final Ruleset rules;
+  private final int FMX, FMY, T;
+  private final int overlap;
+  private final int ground;
+  private final boolean periodic;
+  private final int words;
+  private final int counterShift;
+
+  private OffHeapBuffer wave, compatible, sums, stack;
+  private long stacksize;
+  private EntropyHeap heap;
+  private double[] distribution;
+  private Random random;
+  private long noiseSeed;
+  private boolean contradiction, solved;
+
+  /**
+   * Creates an off-heap model sharing the rules of another one.
+   * @param rules Model whose ruleset, periodicity, boundary and ground are used.
+   * @param width The width of the output, in cells.
+   * @param height The height of the output, in cells.
+   */
+  public OffHeapModel(Model rules, int width, int height) {
+    this(
+      rules.rules,
+      width,
+      height,
+      rules.periodic,
+      rules.overlap(),
+      rules.ground()
+    );
+  }
+
+  private OffHeapModel(
+    Ruleset rules,
+    int width,
+    int height,
+    boolean periodic,
+    int overlap,
+    int ground
+  ) {
+    if ((long) width * height > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+        "Output of " + width + "x" + height + " has more than 2^31 cells"
+      );
+    }
+
+    this.rules = rules;
+    this.FMX = width;
+    this.FMY = height;
+    this.T = rules.T;
+    this.periodic = periodic;
+    this.overlap = overlap;
+    this.ground = ground;
+    this.words = (this.T + 63) >>> 6;
+
+    int max = 0;
+    for (int c : rules.compatibleTemplate) max = Math.max(max, c);
+    this.counterShift = max <= Byte.MAX_VALUE ? 0 : max <= Short.MAX_VALUE ? 1 : 2;
+  }
+
+  /**
+   * Returns a new model over the same rules with its own state.
+   */
+  public OffHeapModel fork(int width, int height) {
+    return new OffHeapModel(
+      this.rules,
+      width,
+      height,
+      this.periodic,
+      this.overlap,
+      this.ground
+    );
+  }
+
+  /**
+   * Off-heap memory used by a run, in bytes, not counting the propagation
+   * stack which starts at 8 bytes per cell and grows with the longest wave.
+   */
+  public long offHeapBytes() {
+    long cells = (long) this.FMX * this.FMY;
+    return (
+      cells * this.words * 8 +
+      (cells * this.T * 4 << this.counterShift) +
+      cells * SUMS_STRIDE
+    );
+  }
+
+  void init() {
+    long cells = (long) this.FMX * this.FMY;
+    this.wave = new OffHeapBuffer(cells * this.words * 8);
+    this.compatible = new OffHeapBuffer(cells * this.T * 4 << this.counterShift);
+    this.sums = new OffHeapBuffer(cells * SUMS_STRIDE);
+    this.stack = new OffHeapBuffer(Math.max(1 << 16, cells * 8));
+    this.heap = new EntropyHeap((int) cells);
+    this.distribution = new double[this.T];
+  }
+
+  /**
+   * Executes a complete run.
+   * @param seed The seed of the run.
+   * @param limit Maximum number of observations, 0 for no limit.
+   * @return false if the run hit a contradiction.
+   */
+  public boolean run(int seed, int limit) {
+    if (this.wave == null) this.init();
+
+    this.random = new Random(seed);
+    this.noiseSeed = this.random.nextLong();
+    this.Clear();
+
+    for (int l = 0; l < limit || limit == 0; l++) {
+      Boolean result = this.observe();
+      if (result != null) return (boolean) result;
+      this.propagate();
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the pattern observed at a cell by the last solved run, or -1.
+   */
+  public int get(int x, int y) {
+    if (!this.solved) return -1;
+
+    long base = (long) (x + y * this.FMX) * this.words;
+    for (int w = 0; w < this.words; w++) {
+      long bits = this.wave.getLong((base + w) << 3);
+      if (bits != 0) return (w << 6) + Long.numberOfTrailingZeros(bits);
+    }
+    return -1;
+  }
+
+  private boolean onBoundary(int x, int y) {
+    return (
+      !this.periodic &&
+      (
+        x < 0 ||
+        y < 0 ||
+        x + this.overlap >= this.FMX ||
+        y + this.overlap >= this.FMY
+      )
+    );
+  }
+
+  private boolean allowed(int i, int t) {
+    long bits = this.wave.getLong(((long) i * this.words + (t >>> 6)) << 3);
+    return (bits & (1L << t)) != 0;
+  }
+
+  Boolean observe() {
+    if (this.contradiction) return false;
+
+    int argmin = this.heap.peek();
+    if (argmin == -1) {
+      this.solved = true;
+      return true;
+    }
+
+    double[] distribution = this.distribution;
+    for (int t = 0; t < this.T; t++) distribution[t] =
+      this.allowed(argmin, t) ? this.rules.weights[t] : 0;
+
+    int r = Model.randomIndice(distribution, this.random.nextDouble());
+
+    for (int t = 0; t < this.T; t++) if (
+      this.allowed(argmin, t) != (t == r)
+    ) this.ban(argmin, t);
+
+    return null;
+  }
+
+  void propagate() {
+    int FMX = this.FMX, FMY = this.FMY, T = this.T;
+
+    while (this.stacksize > 0 && !this.contradiction) {
+      long e1 = this.stack.getLong(--this.stacksize << 3);
+      int i1 = (int) (e1 / T);
+      int t1 = (int) (e1 - (long) i1 * T);
+      int x1 = i1 % FMX, y1 = i1 / FMX;
+
+      for (int d = 0; d < 4; d++) {
+        int x2 = x1 + Model.DX[d], y2 = y1 + Model.DY[d];
+
+        if (this.onBoundary(x2, y2)) continue;
+
+        if (x2 < 0) x2 += FMX; else if (x2 >= FMX) x2 -= FMX;
+        if (y2 < 0) y2 += FMY; else if (y2 >= FMY) y2 -= FMY;
+
+        int i2 = x2 + y2 * FMX;
+        int[] p = this.rules.propagator[d][t1];
+        long compat = (long) i2 * T * 4 + d;
+
+        for (int l = 0; l < p.length; l++) {
+          int t2 = p[l];
+          if (this.decrement(compat + t2 * 4) == 0) this.ban(i2, t2);
+        }
+      }
+    }
+  }
+
+  /**
+   * Decrements the counter at index and returns its new value.
+   */
+  private int decrement(long index) {
+    long offset = index << this.counterShift;
+    switch (this.counterShift) {
+      case 0:
+        byte b = (byte) (this.compatible.getByte(offset) - 1);
+        this.compatible.putByte(offset, b);
+        return b;
+      case 1:
+        short s = (short) (this.compatible.getShort(offset) - 1);
+        this.compatible.putShort(offset, s);
+        return s;
+      default:
+        int c = this.compatible.getInt(offset) - 1;
+        this.compatible.putInt(offset, c);
+        return c;
+    }
+  }
+
+  void ban(int i, int t) {
+    long word = ((long) i * this.words + (t >>> 6)) << 3;
+    this.wave.putLong(word, this.wave.getLong(word) & ~(1L << t));
+
+    // The four counters of (i, t) are contiguous and aligned on their size.
+    long comp = ((long) i * this.T + t) * 4 << this.counterShift;
+    if (this.counterShift == 0) this.compatible.putInt(comp, 0); else {
+      this.compatible.putLong(comp, 0);
+      if (this.counterShift == 2) this.compatible.putLong(comp + 8, 0);
+    }
+
+    this.stack.ensure((this.stacksize + 1) << 3);
+    this.stack.putLong(this.stacksize++ << 3, (long) i * this.T + t);
+
+    long cell = (long) i * SUMS_STRIDE;
+    int amount = this.sums.getInt(cell) - 1;
+    double sum = this.sums.getDouble(cell + 8) - this.rules.weights[t];
+    double logSum =
+      this.sums.getDouble(cell + 16) - this.rules.weightLogWeights[t];
+    this.sums.putInt(cell, amount);
+    this.sums.putDouble(cell + 8, sum);
+    this.sums.putDouble(cell + 16, logSum);
+
+    if (this.onBoundary(i % this.FMX, i / this.FMX)) return;
+    if (amount == 0) this.contradiction = true;
+
+    if (amount > 1) this.heap.update(
+      i,
+      Math.log(sum) - logSum / sum + this.noise(i)
+    ); else this.heap.remove(i);
+  }
+
+  /**
+   * Small random tie-breaker of cell i for the current run.
+   */
+  private double noise(int i) {
+    long h = (this.noiseSeed + i) * 0x9e3779b97f4a7c15L;
+    h = (h ^ (h >>> 32)) * 0xd6e8feb86659fd93L;
+    return 1e-6 * ((h ^ (h >>> 32)) >>> 11) * 0x1p-53;
+  }
+
+  void Clear() {
+    long cells = (long) this.FMX * this.FMY;
+
+    ByteBuffer bits = OffHeapModel.pattern(this.words * 8);
+    for (int w = 0; w < this.words; w++) bits.putLong(
+      w == this.words - 1 && (this.T & 63) != 0 ? (1L << (this.T & 63)) - 1 : -1L
+    );
+    this.wave.fill(bits.flip(), cells * this.words * 8);
+
+    ByteBuffer counters = OffHeapModel.pattern(this.T * 4 << this.counterShift);
+    for (int c : this.rules.compatibleTemplate) {
+      if (this.counterShift == 0) counters.put((byte) c); else if (
+        this.counterShift == 1
+      ) counters.putShort((short) c); else counters.putInt(c);
+    }
+    this.compatible.fill(counters.flip(), cells * this.T * 4 << this.counterShift);
+
+    ByteBuffer sums = OffHeapModel.pattern(SUMS_STRIDE);
+    sums.putInt(0, this.T);
+    sums.putDouble(8, this.rules.sumOfWeights);
+    sums.putDouble(16, this.rules.sumOfWeightLogWeights);
+    this.sums.fill(sums, cells * SUMS_STRIDE);
+
+    this.contradiction = false;
+    this.solved = false;
+    this.stacksize = 0;
+
+    this.heap.clear();
+    if (this.T > 1) {
+      for (int i = 0; i < cells; i++) if (
+        !this.onBoundary(i % this.FMX, i / this.FMX)
+      ) this.heap.append(i, this.rules.startingEntropy + this.noise(i));
+      this.heap.heapify();
+    }
+
+    if (this.ground != 0) {
+      for (int x = 0; x < this.FMX; x++) {
+        for (int t = 0; t < this.T; t++) if (t != this.ground) this.ban(
+            x + (this.FMY - 1) * this.FMX,
+            t
+          );
+
+        for (int y = 0; y < this.FMY - 1; y++) this.ban(
+            x + y * this.FMX,
+            this.ground
+          );
+      }
+
+      this.propagate();
+    }
+  }
+
+  private static ByteBuffer pattern(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+  }
+}
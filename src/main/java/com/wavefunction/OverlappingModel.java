@@ -2,19 +2,23 @@ package com.wavefunction;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.function.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class OverlappingModel extends Model {
   int N;
-  Integer[][] patterns;
+  // Palette indices of the N * N cells of every pattern, one pattern after
+  // the other, packed like PatternTable does: cellBytes bytes per cell.
+  byte[] patterns;
+  int cellBytes;
   int ground;
   List<Color> colors;
 
-  @FunctionalInterface
-  interface Agrees<One, Two, Three, Four, Five> {
-    public Five apply(One one, Two two, Three three, Four four);
-  }
+  private int[] drawn;
+  private int drawStamp;
 
   /**
    * Creates a new instance of the Overlapping Model
@@ -43,157 +47,354 @@ public class OverlappingModel extends Model {
     
 
     int SMX = data.getWidth(), SMY = data.getHeight();
-    Integer[][] sample = new Integer[SMX][SMY];
+    int[] sample = data.getRGB(0, 0, SMX, SMY, null, 0, SMX);
 
     this.colors = new ArrayList<Color>();
-
-    for (int y = 0; y < SMY; y++) for (int x = 0; x < SMX; x++) {
-      Color color = new Color(data.getRGB(x, y));
-
-      int i = 0;
-      for (Color c : colors) {
-        if (c.equals(color)) break;
-        i++;
+    LongIntMap palette = new LongIntMap(16);
+
+    for (int s = 0; s < sample.length; s++) {
+      int rgb = sample[s] | 0xff000000;
+      int i = palette.get(rgb, -1);
+      if (i < 0) {
+        i = this.colors.size();
+        palette.put(rgb, i);
+        this.colors.add(new Color(rgb));
       }
-      if (i == colors.size()) colors.add(color);
-      sample[x][y] = i;
+      sample[s] = i;
     }
 
     int C = this.colors.size();
-    long W = OverlappingModel.toPower(C, this.N * this.N);
-
-    Function<BiFunction<Integer, Integer, Integer>, Integer[]> pattern =
-      (BiFunction<Integer, Integer, Integer> f) -> {
-        Integer[] result = new Integer[this.N * this.N];
-        for (int y = 0; y < this.N; y++) for (int x = 0; x <
-          this.N; x++) result[x + y * this.N] = f.apply(x, y);
+    int NN = this.N * this.N;
+    int YMAX = periodicInput ? SMY : SMY - N + 1;
+    int XMAX = periodicInput ? SMX : SMX - N + 1;
 
-        return result;
-      };
-
-    BiFunction<Integer, Integer, Integer[]> patternFromSample =
-      (Integer x, Integer y) -> pattern.apply(
-        (Integer dx, Integer dy) -> sample[(x + dx) % SMX][(y + dy) % SMY]
-      );
+    int bands = Math.max(
+      1,
+      Math.min(YMAX, 4 * Runtime.getRuntime().availableProcessors())
+    );
+    List<PatternTable> counts = IntStream
+      .range(0, bands)
+      .parallel()
+      .mapToObj(
+        band -> OverlappingModel.extract(
+          sample,
+          SMX,
+          SMY,
+          this.N,
+          C,
+          symmetry,
+          XMAX,
+          band * YMAX / bands,
+          (band + 1) * YMAX / bands
+        )
+      )
+      .collect(Collectors.toList());
+
+    PatternTable weights = new PatternTable(NN, C, counts.get(0).size());
+    for (PatternTable band : counts) weights.addAll(band);
 
-    Function<Integer[], Integer[]> rotate =
-      (Integer[] p) -> pattern.apply(
-        (Integer x, Integer y) -> p[this.N - 1 - y + x * this.N]
-      );
+    this.T = weights.size();
+    this.ground = (ground + this.T) % this.T;
+    this.patterns = weights.packed();
+    this.cellBytes = weights.width;
+    double[] patternWeights = new double[this.T];
+    for (int t = 0; t < this.T; t++) patternWeights[t] = weights.count(t);
+
+    this.rules = new Ruleset(
+      OverlappingModel.propagator(this.patterns, this.cellBytes, this.T, this.N),
+      patternWeights
+    );
+  }
 
-    Function<Integer[], Integer[]> reflect =
-      (Integer[] p) -> pattern.apply(
-        (Integer x, Integer y) -> p[this.N - 1 - x + y * this.N]
-      );
+  /**
+   * Counts the patterns (and their first symmetries) whose top-left corner
+   * lies in rows [y0, y1) of the palette-indexed sample, in order of first
+   * appearance.
+   */
+  private static PatternTable extract(
+    int[] sample,
+    int SMX,
+    int SMY,
+    int N,
+    int C,
+    int symmetry,
+    int XMAX,
+    int y0,
+    int y1
+  ) {
+    PatternTable weights = new PatternTable(N * N, C, 64);
+    int[][] ps = new int[8][N * N];
+    byte[] packed = new byte[weights.stride];
 
-    Function<Integer[], Long> index =
-      (Integer[] p) -> {
-        long result = 0, power = 1;
-        for (int i = 0; i < p.length; i++) {
-          result += p[p.length - 1 - i] * power;
-          power *= C;
-        }
-        return result;
-      };
+    for (int y = y0; y < y1; y++) for (int x = 0; x < XMAX; x++) {
+      for (int dy = 0; dy < N; dy++) for (int dx = 0; dx < N; dx++) {
+        ps[0][dx + dy * N] = sample[(x + dx) % SMX + ((y + dy) % SMY) * SMX];
+      }
 
-    Function<Long, Integer[]> patternFromIndex =
-      (Long ind) -> {
-        long residue = ind, power = W;
-        Integer[] result = new Integer[this.N * this.N];
+      reflect(ps[0], ps[1], N);
+      rotate(ps[0], ps[2], N);
+      reflect(ps[2], ps[3], N);
+      rotate(ps[2], ps[4], N);
+      reflect(ps[4], ps[5], N);
+      rotate(ps[4], ps[6], N);
+      reflect(ps[6], ps[7], N);
 
-        for (int i = 0; i < result.length; i++) {
-          power /= C;
-          int count = 0;
+      for (int k = 0; k < symmetry; k++) {
+        weights.pack(ps[k], packed);
+        weights.add(packed, 0, 1);
+      }
+    }
 
-          while (residue >= power) {
-            residue -= power;
-            count++;
-          }
+    return weights;
+  }
 
-          result[i] = count;
-        }
+  private static void rotate(int[] p, int[] result, int N) {
+    for (int y = 0; y < N; y++) for (int x = 0; x < N; x++) {
+      result[x + y * N] = p[N - 1 - y + x * N];
+    }
+  }
 
-        return result;
-      };
+  private static void reflect(int[] p, int[] result, int N) {
+    for (int y = 0; y < N; y++) for (int x = 0; x < N; x++) {
+      result[x + y * N] = p[N - 1 - x + y * N];
+    }
+  }
 
-    HashMap<Long, Integer> weights = new HashMap<Long, Integer>();
-    List<Long> ordering = new ArrayList<Long>();
+  /**
+   * Returns the palette index of cell k of pattern t.
+   */
+  int color(int t, int k) {
+    return OverlappingModel.cell(
+      this.patterns,
+      this.cellBytes,
+      t * this.N * this.N + k
+    );
+  }
 
-    for (int y = 0; y < (periodicInput ? SMY : SMY - N + 1); y++) for (int x =
-      0; x < (periodicInput ? SMX : SMX - this.N + 1); x++) {
-      Integer[][] ps = new Integer[8][];
+  /**
+   * Returns the palette index at a cell index of packed patterns.
+   */
+  private static int cell(byte[] patterns, int cellBytes, int index) {
+    if (cellBytes == 1) return patterns[index] & 0xff;
+    return (
+      (patterns[2 * index] & 0xff) | (patterns[2 * index + 1] & 0xff) << 8
+    );
+  }
 
-      ps[0] = patternFromSample.apply(x, y);
-      ps[1] = reflect.apply(ps[0]);
-      ps[2] = rotate.apply(ps[0]);
-      ps[3] = reflect.apply(ps[2]);
-      ps[4] = rotate.apply(ps[2]);
-      ps[5] = reflect.apply(ps[4]);
-      ps[6] = rotate.apply(ps[4]);
-      ps[7] = reflect.apply(ps[6]);
+  /**
+   * Builds the propagator of T patterns of size N packed one after the other
+   * in a flat array: for every direction and pattern, the patterns that agree
+   * with it where they overlap.
+   * The overlap of two neighbours is an (N-1)xN stripe of each, so patterns
+   * are bucketed by a hash of that stripe and every pattern is only compared
+   * with the candidates in its bucket. Patterns are processed in parallel on
+   * the fork-join common pool.
+   */
+  static int[][][] propagator(byte[] patterns, int cellBytes, int T, int N) {
+    int[][][] propagator = new int[4][T][];
 
-      for (int k = 0; k < symmetry; k++) {
-        long ind = index.apply(ps[k]);
-        if (weights.containsKey(ind)) weights.put(
-          ind,
-          weights.get(ind) + 1
-        ); else {
-          weights.put(ind, 1);
-          ordering.add(ind);
+    for (int d = 0; d < 4; d++) {
+      int dx = Model.DX[d], dy = Model.DY[d];
+      int xmin = dx < 0 ? 0 : dx, xmax = dx < 0 ? dx + N : N;
+      int ymin = dy < 0 ? 0 : dy, ymax = dy < 0 ? dy + N : N;
+
+      long[] own = new long[T], other = new long[T];
+      IntStream.range(0, T).parallel().forEach(t -> {
+        own[t] = stripe(patterns, cellBytes, t, N, xmin, xmax, ymin, ymax, 0, 0);
+        other[t] =
+          stripe(patterns, cellBytes, t, N, xmin, xmax, ymin, ymax, dx, dy);
+      });
+
+      // Buckets are runs of members, ordered by pattern, in one int array.
+      LongIntMap buckets = new LongIntMap(T);
+      int[] bucketOf = new int[T];
+      for (int t = 0; t < T; t++) {
+        int bucket = buckets.get(other[t], -1);
+        if (bucket < 0) {
+          bucket = buckets.size();
+          buckets.put(other[t], bucket);
         }
+        bucketOf[t] = bucket;
       }
+
+      int[] starts = new int[buckets.size() + 1];
+      for (int t = 0; t < T; t++) starts[bucketOf[t] + 1]++;
+      for (int b = 0; b < buckets.size(); b++) starts[b + 1] += starts[b];
+      int[] members = new int[T], filled = starts.clone();
+      for (int t = 0; t < T; t++) members[filled[bucketOf[t]]++] = t;
+
+      int[][] forward = propagator[d];
+      IntStream.range(0, T).parallel().forEach(t1 -> {
+        int bucket = buckets.get(own[t1], -1);
+        if (bucket < 0) {
+          forward[t1] = new int[0];
+          return;
+        }
+
+        int[] list = new int[starts[bucket + 1] - starts[bucket]];
+        int size = 0;
+        for (int m = starts[bucket]; m < starts[bucket + 1]; m++) if (
+          agrees(patterns, cellBytes, t1, members[m], N, dx, dy, xmin, xmax, ymin, ymax)
+        ) list[size++] = members[m];
+        forward[t1] = Arrays.copyOf(list, size);
+      });
     }
 
-    this.T = weights.size();
+    return propagator;
+  }
+
+  private static long stripe(
+    byte[] patterns,
+    int cellBytes,
+    int t,
+    int N,
+    int xmin,
+    int xmax,
+    int ymin,
+    int ymax,
+    int dx,
+    int dy
+  ) {
+    int base = t * N * N;
+    long hash = 0xcbf29ce484222325L;
+    for (int y = ymin; y < ymax; y++) for (int x = xmin; x < xmax; x++) {
+      hash = (
+        hash ^ cell(patterns, cellBytes, base + x - dx + N * (y - dy))
+      ) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private static boolean agrees(
+    byte[] patterns,
+    int cellBytes,
+    int t1,
+    int t2,
+    int N,
+    int dx,
+    int dy,
+    int xmin,
+    int xmax,
+    int ymin,
+    int ymax
+  ) {
+    int p1 = t1 * N * N, p2 = t2 * N * N;
+    for (int y = ymin; y < ymax; y++) for (int x = xmin; x < xmax; x++) if (
+      cell(patterns, cellBytes, p1 + x + N * y) !=
+      cell(patterns, cellBytes, p2 + x - dx + N * (y - dy))
+    ) return false;
+    return true;
+  }
+
+  private OverlappingModel(
+    CompiledModel compiled,
+    int width,
+    int height,
+    boolean periodicOutput,
+    int ground
+  ) {
+    super(width, height);
+    this.N = compiled.N;
+    this.periodic = periodicOutput;
+    this.colors = new ArrayList<Color>();
+    for (int c : compiled.colors) this.colors.add(new Color(c));
+    this.patterns = compiled.patterns;
+    this.cellBytes = PatternTable.width(compiled.colors.length);
+    this.rules = new Ruleset(compiled.propagator, compiled.weights);
+    this.T = this.rules.T;
     this.ground = (ground + this.T) % this.T;
-    this.patterns = new Integer[this.T][];
-    this.weights = new Double[this.T];
+  }
 
-    int counter = 0;
+  /**
+   * Creates an Overlapping Model like the constructor does, but reuses the
+   * patterns, weights, colors and propagator compiled by an earlier call with
+   * the same source image, N, symmetry and periodicInput.
+   * Compiled rules are kept as one file per key in the cache directory.
+   * @param cache Directory holding the compiled models.
+   * @see #OverlappingModel(BufferedImage, int, int, int, boolean, boolean, int, int)
+   */
+  public static OverlappingModel cached(
+    Path cache,
+    BufferedImage data,
+    int N,
+    int width,
+    int height,
+    boolean periodicInput,
+    boolean periodicOutput,
+    int symmetry,
+    int ground
+  ) throws IOException {
+    byte[] key = CompiledModel.key(data, N, symmetry, periodicInput);
+    Path file = cache.resolve(CompiledModel.fileName(key));
+
+    CompiledModel compiled = CompiledModel.load(file, key);
+    if (compiled != null) return new OverlappingModel(
+      compiled,
+      width,
+      height,
+      periodicOutput,
+      ground
+    );
 
-    for (long w : ordering) {
-      this.patterns[counter] = patternFromIndex.apply(w);
-      this.weights[counter] = (double) weights.get(w);
-//      System.out.println(this.weights[counter]);
+    OverlappingModel model = new OverlappingModel(
+      data,
+      N,
+      width,
+      height,
+      periodicInput,
+      periodicOutput,
+      symmetry,
+      ground
+    );
 
-      //        	weights[counter] = weights[(int) w];
-      counter++;
-    }
+    int[] colors = new int[model.colors.size()];
+    for (int c = 0; c < colors.length; c++) colors[c] =
+      model.colors.get(c).getRGB();
+    new CompiledModel(
+      key,
+      N,
+      colors,
+      model.patterns,
+      model.rules.weights,
+      model.rules.propagator
+    )
+      .save(file);
+
+    return model;
+  }
 
-    Agrees<Integer[], Integer[], Integer, Integer, Boolean> agrees =
-      (Integer[] p1, Integer[] p2, Integer dx, Integer dy) -> {
-        int xmin = dx < 0 ? 0 : dx;
-        int xmax = dx < 0 ? dx + N : N;
-        int ymin = dy < 0 ? 0 : dy;
-        int ymax = dy < 0 ? dy + N : N;
+  private OverlappingModel(OverlappingModel rules, int width, int height) {
+    super(rules, width, height);
+    this.N = rules.N;
+    this.patterns = rules.patterns;
+    this.cellBytes = rules.cellBytes;
+    this.ground = rules.ground;
+    this.colors = rules.colors;
+  }
 
-        for (int y = ymin; y < ymax; y++) for (int x = xmin; x < xmax; x++) if (
-          p1[x + this.N * y] != p2[x - dx + this.N * (y - dy)]
-        ) return false;
-        return true;
-      };
+  @Override
+  public OverlappingModel fork(int width, int height) {
+    return new OverlappingModel(this, width, height);
+  }
 
-    this.propagator = new int[4][][];
-    
-//    System.out.println(this.T);
+  @Override
+  Model forkChunk(int width, int height) {
+    OverlappingModel chunk = (OverlappingModel) super.forkChunk(
+      width + this.N - 1,
+      height + this.N - 1
+    );
+    chunk.ground = 0;
+    return chunk;
+  }
 
-    for (int d = 0; d < 4; d++) {
-      this.propagator[d] = new int[this.T][];
-      for (int t = 0; t < this.T; t++) {
-        List<Integer> list = new ArrayList<Integer>();
-        for (int t2 = 0; t2 < this.T; t2++) if (
-          agrees.apply(
-            this.patterns[t],
-            this.patterns[t2],
-            Model.DX[d],
-            Model.DY[d]
-          )
-        ) list.add(t2);
-        this.propagator[d][t] = new int[list.size()];
-        for (int c = 0; c < list.size(); c++) this.propagator[d][t][c] =
-          list.get(c);
-      }
-    }
+  @Override
+  int overlap() {
+    return this.N - 1;
+  }
+
+  @Override
+  int ground() {
+    return this.ground;
   }
 
   @Override
@@ -210,6 +411,7 @@ public class OverlappingModel extends Model {
    */
   @Override
   public BufferedImage graphics() {
+    long start = this.metrics != null ? System.nanoTime() : 0;
     BufferedImage result = new BufferedImage(
       this.FMX,
       this.FMY,
@@ -221,50 +423,88 @@ public class OverlappingModel extends Model {
         int dy = y < this.FMY - this.N + 1 ? 0 : this.N - 1;
         for (int x = 0; x < this.FMX; x++) {
           int dx = x < this.FMX - this.N + 1 ? 0 : this.N - 1;
-          Color c =
-            this.colors.get(
-                this.patterns[this.observed[x - dx + (y - dy) * this.FMX]][dx +
-                    dy *
-                    this.N]
-              );
+          Color c = this.colors.get(
+            this.color(this.observed[x - dx + (y - dy) * this.FMX], dx + dy * this.N)
+          );
 
           result.setRGB(x, y, c.getRGB());
         }
       }
     } else {
-      for (int i = 0; i < this.wave.length; i++) {
-        int contributors = 0, r = 0, g = 0, b = 0;
-        int x = i % this.FMX, y = i / this.FMX;
-
-        for (int dy = 0; dy < this.N; dy++) for (int dx = 0; dx <
-          this.N; dx++) {
-          int sx = x - dx;
-          if (sx < 0) sx += this.FMX;
-
-          int sy = y - dy;
-          if (sy < 0) sy += this.FMY;
-
-          int s = sx + sy * this.FMX;
-          if (this.onBoundary(sx, sy)) continue;
-          for (int t = 0; t < this.T; t++) if (wave[s][t]) {
-            contributors++;
-            Color color = this.colors.get(this.patterns[t][dx + dy * this.N]);
-            r += color.getRed();
-            g += color.getGreen();
-            b += color.getBlue();
-          }
-        }
+      for (int i = 0; i < this.wave.length; i++) result.setRGB(
+        i % this.FMX,
+        i / this.FMX,
+        this.averageColor(i % this.FMX, i / this.FMX)
+      );
+    }
 
-        Color c = new Color(
-          r / contributors,
-          g / contributors,
-          b / contributors
-        );
-        result.setRGB(x, y, c.getRGB());
+    if (this.metrics != null) this.metrics.rendered(start);
+    return result;
+  }
+
+  /**
+   * Returns the average color that the patterns still allowed in the cells
+   * covering pixel (x, y) give to it, as opaque ARGB.
+   */
+  private int averageColor(int x, int y) {
+    int contributors = 0, r = 0, g = 0, b = 0;
+
+    for (int dy = 0; dy < this.N; dy++) for (int dx = 0; dx < this.N; dx++) {
+      int sx = x - dx;
+      if (sx < 0) sx += this.FMX;
+
+      int sy = y - dy;
+      if (sy < 0) sy += this.FMY;
+
+      int s = sx + sy * this.FMX;
+      if (this.onBoundary(sx, sy)) continue;
+      for (int t = this.wave.first(s); t >= 0; t = this.wave.next(s, t + 1)) {
+        contributors++;
+        Color color = this.colors.get(this.color(t, dx + dy * this.N));
+        r += color.getRed();
+        g += color.getGreen();
+        b += color.getBlue();
       }
     }
 
-    return result;
+    if (contributors == 0) return 0xff000000;
+    return new Color(
+      r / contributors,
+      g / contributors,
+      b / contributors
+    ).getRGB();
+  }
+
+  @Override
+  int frameWidth() {
+    return this.FMX;
+  }
+
+  @Override
+  int frameHeight() {
+    return this.FMY;
+  }
+
+  @Override
+  void draw(int[] frame, int[] cells, int count) {
+    if (this.drawn == null || this.drawn.length != frame.length) {
+      this.drawn = new int[frame.length];
+      this.drawStamp = 0;
+    }
+    this.drawStamp++;
+
+    for (int k = 0; k < count; k++) {
+      int sx = cells[k] % this.FMX, sy = cells[k] / this.FMX;
+
+      for (int dy = 0; dy < this.N; dy++) for (int dx = 0; dx < this.N; dx++) {
+        int x = (sx + dx) % this.FMX, y = (sy + dy) % this.FMY;
+        int pixel = x + y * this.FMX;
+        if (this.drawn[pixel] == this.drawStamp) continue;
+
+        this.drawn[pixel] = this.drawStamp;
+        frame[pixel] = this.averageColor(x, y);
+      }
+    }
   }
 
   protected void Clear() {
@@ -0,0 +1,273 @@
+package com.wavefunction;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drains the propagation stack of a Model on several threads.
+ *
+ * The grid is split into horizontal bands of rows, one region per worker.
+ * A region only clears wave bits of its own cells. Counters of cells in the
+ * first and last row of a band can also be decremented by the neighbouring
+ * region, so they are decremented atomically; all others are plain writes.
+ * When a counter of another region's cell reaches 0 the ban is handed off to
+ * that region's inbox.
+ *
+ * Work goes in rounds: every region with pending work drains its stack and
+ * inbox, and rounds repeat until no inbox received anything. Workers never
+ * wait for each other, so any executor size works. Arc consistency has a
+ * single fixpoint, so the resulting wave is the same as the sequential one.
+ * The bookkeeping of the banned patterns (sumsOfOnes and the cell selector)
+ * is then done on the calling thread, in (cell, pattern) order so the outcome
+ * does not depend on scheduling.
+ *
+ * If the calling thread is interrupted, propagate() stops the regions and
+ * waits until none of them runs any more before it returns, with the model
+ * in contradiction.
+ */
+final class ParallelPropagator {
+  private static final VarHandle COUNTERS =
+    MethodHandles.arrayElementVarHandle(int[].class);
+
+  private final Model model;
+  private final ExecutorService executor;
+  private final int[] rowRegion;
+  private final boolean[] edgeRow;
+  private final Region[] regions;
+  private volatile boolean contradiction;
+  // Number of the current call of propagate(), increased once it stops
+  // waiting so that regions still running or queued return, and the number
+  // of regions inside run().
+  private volatile int generation;
+  private final AtomicInteger active = new AtomicInteger();
+
+  private final class Region {
+    final int index;
+    long[] stack = new long[256];
+    int size;
+    long[] banned = new long[256];
+    int bannedCount;
+
+    private long[] inbox = new long[64];
+    private int inboxSize;
+
+    Region(int index) {
+      this.index = index;
+    }
+
+    void push(long entry) {
+      if (this.size == this.stack.length) this.stack =
+        Arrays.copyOf(this.stack, this.size * 2);
+      this.stack[this.size++] = entry;
+    }
+
+    synchronized void offer(long entry) {
+      if (this.inboxSize == this.inbox.length) this.inbox =
+        Arrays.copyOf(this.inbox, this.inboxSize * 2);
+      this.inbox[this.inboxSize++] = entry;
+    }
+
+    synchronized boolean hasMail() {
+      return this.inboxSize > 0;
+    }
+
+    /**
+     * Bans every pattern handed off by other regions that is still allowed.
+     */
+    private void receive() {
+      long[] mail;
+      int count;
+      synchronized (this) {
+        mail = this.inbox;
+        count = this.inboxSize;
+        this.inbox = new long[Math.max(64, count)];
+        this.inboxSize = 0;
+      }
+      for (int k = 0; k < count; k++) this.ban(
+        Model.stackCell(mail[k]),
+        Model.stackPattern(mail[k])
+      );
+    }
+
+    private void ban(int i, int t) {
+      Wave wave = ParallelPropagator.this.model.wave;
+      if (!wave.get(i, t)) return;
+      wave.clear(i, t);
+
+      long entry = Model.stackEntry(i, t);
+      this.push(entry);
+      if (this.bannedCount == this.banned.length) this.banned =
+        Arrays.copyOf(this.banned, this.bannedCount * 2);
+      this.banned[this.bannedCount++] = entry;
+
+      Model model = ParallelPropagator.this.model;
+      if (
+        wave.count(i) == 0 && !model.onBoundary(i % model.FMX, i / model.FMX)
+      ) ParallelPropagator.this.contradiction = true;
+    }
+
+    /**
+     * Drains the stack and inbox of the region, unless propagate() call
+     * generation is over.
+     */
+    Void run(int generation) {
+      ParallelPropagator.this.active.incrementAndGet();
+      try {
+        this.drain(generation);
+      } finally {
+        ParallelPropagator.this.active.decrementAndGet();
+      }
+      return null;
+    }
+
+    private void drain(int generation) {
+      ParallelPropagator parallel = ParallelPropagator.this;
+      Model model = parallel.model;
+      int[][][] propagator = model.rules.propagator;
+      int[] compatible = model.compatible;
+      int FMX = model.FMX, FMY = model.FMY, T = model.T;
+
+      while (!parallel.contradiction && parallel.generation == generation) {
+        if (this.size == 0) {
+          if (!this.hasMail()) break;
+          this.receive();
+          continue;
+        }
+
+        long e1 = this.stack[--this.size];
+        int i1 = Model.stackCell(e1);
+        int t1 = Model.stackPattern(e1);
+        int x1 = i1 % FMX;
+        int y1 = i1 / FMX;
+
+        for (int d = 0; d < 4; d++) {
+          int x2 = x1 + Model.DX[d], y2 = y1 + Model.DY[d];
+
+          if (model.onBoundary(x2, y2)) continue;
+
+          if (x2 < 0) x2 += FMX; else if (x2 >= FMX) x2 -= FMX;
+          if (y2 < 0) y2 += FMY; else if (y2 >= FMY) y2 -= FMY;
+
+          int i2 = x2 + y2 * FMX;
+          int[] p = propagator[d][t1];
+          int compat = i2 * T * 4 + d;
+          int owner = parallel.rowRegion[y2];
+          boolean shared = parallel.edgeRow[y2];
+
+          for (int l = 0; l < p.length; l++) {
+            int t2 = p[l];
+            int index = compat + t2 * 4;
+            int left = shared
+              ? (int) COUNTERS.getAndAdd(compatible, index, -1) - 1
+              : --compatible[index];
+
+            if (left != 0) continue;
+            if (owner == this.index) this.ban(i2, t2); else parallel.regions[
+              owner
+            ].offer(Model.stackEntry(i2, t2));
+          }
+        }
+      }
+
+    }
+  }
+
+  /**
+   * @param model Model whose stack is drained. Its size must not change.
+   * @param regions Number of bands the grid is split into.
+   * @param executor Runs the regions.
+   */
+  ParallelPropagator(Model model, int regions, ExecutorService executor) {
+    this.model = model;
+    this.executor = executor;
+
+    int count = Math.max(1, Math.min(regions, model.FMY / 2));
+    this.rowRegion = new int[model.FMY];
+    this.edgeRow = new boolean[model.FMY];
+    for (int y = 0; y < model.FMY; y++) this.rowRegion[y] =
+      (int) ((long) y * count / model.FMY);
+    for (int y = 0; y < model.FMY; y++) this.edgeRow[y] =
+      this.rowRegion[(y + model.FMY - 1) % model.FMY] != this.rowRegion[y] ||
+      this.rowRegion[(y + 1) % model.FMY] != this.rowRegion[y];
+
+    this.regions = new Region[count];
+    for (int r = 0; r < count; r++) this.regions[r] = new Region(r);
+  }
+
+  /**
+   * Propagates every entry on the model's stack and empties it.
+   * The entries must already have been banned.
+   * @return Number of patterns banned by the propagation.
+   */
+  int propagate() {
+    Model model = this.model;
+    this.contradiction = false;
+    int generation = this.generation;
+
+    for (int k = 0; k < model.stacksize; k++) {
+      int i = Model.stackCell(model.stack[k]);
+      this.regions[this.rowRegion[i / model.FMX]].push(model.stack[k]);
+    }
+    model.stacksize = 0;
+
+    List<Future<Void>> futures =
+      new ArrayList<Future<Void>>(this.regions.length);
+    boolean interrupted = false;
+    Throwable failure = null;
+    try {
+      while (!this.contradiction) {
+        futures.clear();
+        for (Region region : this.regions) if (
+          region.size > 0 || region.hasMail()
+        ) futures.add(this.executor.submit(() -> region.run(generation)));
+        if (futures.isEmpty()) break;
+
+        for (Future<Void> done : futures) done.get();
+      }
+    } catch (InterruptedException e) {
+      interrupted = true;
+    } catch (ExecutionException e) {
+      failure = e.getCause();
+    } catch (RuntimeException e) {
+      failure = e;
+    } finally {
+      // Nothing below may run while a region still touches the model. A
+      // region entering run() from now on sees the next generation and returns.
+      this.generation = generation + 1;
+      while (this.active.get() > 0) Thread.yield();
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+
+    int total = 0;
+    for (Region region : this.regions) total += region.bannedCount;
+    long[] banned = new long[total];
+    total = 0;
+    for (Region region : this.regions) {
+      System.arraycopy(region.banned, 0, banned, total, region.bannedCount);
+      total += region.bannedCount;
+      region.bannedCount = 0;
+      region.size = 0;
+      synchronized (region) {
+        region.inboxSize = 0;
+      }
+    }
+
+    Arrays.sort(banned);
+    for (long entry : banned) model.banned(
+      Model.stackCell(entry),
+      Model.stackPattern(entry)
+    );
+
+    // The wave is only partly propagated, so the run cannot go on.
+    if (interrupted || failure != null) model.contradiction = true;
+    if (failure != null) throw new IllegalStateException(failure);
+    return banned.length;
+  }
+}
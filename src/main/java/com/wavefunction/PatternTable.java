@@ -0,0 +1,187 @@
+package com.wavefunction;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Counts distinct NxN patterns of palette indices, in order of first
+ * appearance, without encoding them as numbers, so any N and palette size
+ * work.
+ *
+ * Patterns are packed one or two bytes per cell, depending on the palette
+ * size, into one flat byte[], each padded to a whole number of longs. They
+ * are found through an open-addressing table on a 64-bit hash of those
+ * longs; patterns with equal hashes are compared byte for byte, so hash
+ * collisions never merge two patterns.
+ */
+final class PatternTable {
+  private static final VarHandle WORDS =
+    MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  final int cells, width, stride;
+
+  private byte[] data;
+  private long[] hashes;
+  private int[] counts;
+  private int size;
+
+  private int[] slots;
+  private int mask;
+
+  /**
+   * @param cells Number of cells of a pattern, N * N.
+   * @param colors Size of the palette.
+   * @param expected Expected number of patterns.
+   */
+  PatternTable(int cells, int colors, int expected) {
+    if (colors > 1 << 16) throw new IllegalArgumentException(
+      "Palettes of more than 65536 colors are not supported, got " + colors
+    );
+
+    this.cells = cells;
+    this.width = PatternTable.width(colors);
+    this.stride = (cells * this.width + 7) & ~7;
+
+    expected = Math.max(4, expected);
+    this.data = new byte[expected * this.stride];
+    this.hashes = new long[expected];
+    this.counts = new int[expected];
+
+    int capacity = Integer.highestOneBit(expected * 2 - 1) << 1;
+    this.slots = new int[capacity];
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * Number of bytes a cell is packed into, for a palette of that many colors.
+   */
+  static int width(int colors) {
+    return colors <= 1 << 8 ? 1 : 2;
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  int count(int t) {
+    return this.counts[t];
+  }
+
+  /**
+   * Returns every pattern packed one after the other, without the padding:
+   * cell k of pattern t starts at byte (t * cells + k) * width.
+   */
+  byte[] packed() {
+    int length = this.cells * this.width;
+    byte[] packed = new byte[this.size * length];
+    for (int t = 0; t < this.size; t++) System.arraycopy(
+      this.data,
+      t * this.stride,
+      packed,
+      t * length,
+      length
+    );
+    return packed;
+  }
+
+  /**
+   * Packs a pattern into the first stride bytes of packed, whose padding
+   * must be zero.
+   */
+  void pack(int[] pattern, byte[] packed) {
+    if (this.width == 1) {
+      for (int k = 0; k < this.cells; k++) packed[k] = (byte) pattern[k];
+      return;
+    }
+
+    for (int k = 0; k < this.cells; k++) {
+      packed[2 * k] = (byte) pattern[k];
+      packed[2 * k + 1] = (byte) (pattern[k] >>> 8);
+    }
+  }
+
+  /**
+   * Adds count occurrences of a packed pattern.
+   * @return Index of the pattern.
+   */
+  int add(byte[] packed, int offset, int count) {
+    long hash = PatternTable.hash(packed, offset, this.stride);
+
+    int slot = (int) hash & this.mask;
+    for (int id; (id = this.slots[slot]) != 0; slot = (slot + 1) & this.mask) {
+      int t = id - 1;
+      if (
+        this.hashes[t] == hash &&
+        Arrays.equals(
+          this.data,
+          t * this.stride,
+          (t + 1) * this.stride,
+          packed,
+          offset,
+          offset + this.stride
+        )
+      ) {
+        this.counts[t] += count;
+        return t;
+      }
+    }
+
+    int t = this.size++;
+    if (t == this.hashes.length) {
+      this.data = Arrays.copyOf(this.data, 2 * this.data.length);
+      this.hashes = Arrays.copyOf(this.hashes, 2 * t);
+      this.counts = Arrays.copyOf(this.counts, 2 * t);
+    }
+    System.arraycopy(packed, offset, this.data, t * this.stride, this.stride);
+    this.hashes[t] = hash;
+    this.counts[t] = count;
+    this.slots[slot] = t + 1;
+
+    if (2 * this.size > this.slots.length) this.grow();
+    return t;
+  }
+
+  /**
+   * Adds every pattern of other with its count, in other's order.
+   */
+  void addAll(PatternTable other) {
+    for (int t = 0; t < other.size; t++) this.add(
+      other.data,
+      t * other.stride,
+      other.counts[t]
+    );
+  }
+
+  private void grow() {
+    this.slots = new int[2 * this.slots.length];
+    this.mask = this.slots.length - 1;
+    for (int t = 0; t < this.size; t++) {
+      int slot = (int) this.hashes[t] & this.mask;
+      while (this.slots[slot] != 0) slot = (slot + 1) & this.mask;
+      this.slots[slot] = t + 1;
+    }
+  }
+
+  /**
+   * 64-bit hash of stride bytes, a multiple of 8, with the word mixing and
+   * finalizer of MurmurHash3.
+   */
+  static long hash(byte[] data, int offset, int stride) {
+    long h = stride;
+    for (int k = 0; k < stride; k += 8) {
+      long word = (long) WORDS.get(data, offset + k);
+      word *= 0x87c37b91114253d5L;
+      word = Long.rotateLeft(word, 31) * 0x4cf5ad432745937fL;
+      h ^= word;
+      h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+    }
+
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+}
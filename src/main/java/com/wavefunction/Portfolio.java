@@ -0,0 +1,57 @@
+package com.wavefunction;
+
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs several seeds of the same model at once and keeps the first one that
+ * finishes without a contradiction.
+ */
+public class Portfolio {
+
+  /**
+   * Solves the rules of a model with every seed in parallel, one forked model
+   * per seed. The first successful run cancels the others.
+   * @param rules Model whose rules are shared by all the runs. It is not run itself.
+   * @param seeds Seeds to try.
+   * @param threads Maximum number of seeds running at the same time.
+   * @return The solved model, or null if every seed hit a contradiction.
+   */
+  @SuppressWarnings("unchecked")
+  public static <M extends Model> M run(M rules, int[] seeds, int threads)
+    throws InterruptedException, ExecutionException {
+    ExecutorService ex = Executors.newFixedThreadPool(
+      Math.max(1, Math.min(threads, seeds.length))
+    );
+    CompletionService<M> completion = new ExecutorCompletionService<M>(ex);
+    AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    for (int seed : seeds) completion.submit(() -> {
+      M model = (M) rules.fork();
+      return model.run(seed, 0, cancelled) ? model : null;
+    });
+
+    M solved = null;
+    try {
+      for (int k = 0; k < seeds.length && solved == null; k++) solved =
+        completion.take().get();
+    } finally {
+      cancelled.set(true);
+      ex.shutdownNow();
+    }
+
+    return solved;
+  }
+
+  /**
+   * Same as run(rules, seeds, threads) with one thread per available core.
+   */
+  public static <M extends Model> M run(M rules, int[] seeds)
+    throws InterruptedException, ExecutionException {
+    return Portfolio.run(rules, seeds, Runtime.getRuntime().availableProcessors());
+  }
+}
@@ -0,0 +1,93 @@
+package com.wavefunction;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Keeps a live picture of a running model. After every step only the pixels
+ * of the cells that changed are redrawn, into one persistent ARGB frame, so a
+ * frame costs time in proportion to the cells that changed during its step.
+ * Frames can be handed to a sink to capture the run as an animation.
+ */
+public class ProgressRenderer implements StepObserver {
+
+  /**
+   * Receives the frame after every step. The image is reused for the next
+   * frame, so it must be copied or written out before returning.
+   */
+  @FunctionalInterface
+  public interface FrameSink {
+    void accept(int step, BufferedImage frame) throws IOException;
+  }
+
+  private final Model model;
+  private final BufferedImage image;
+  private final int[] frame;
+  private final FrameSink sink;
+  private int step;
+
+  /**
+   * Creates a renderer and attaches it to the model.
+   * @param model Model to render. Must be an OverlappingModel or a SimpleTiledModel.
+   * @param sink Receives every frame, or null to only keep the latest one.
+   */
+  public ProgressRenderer(Model model, FrameSink sink) {
+    this.model = model;
+    this.sink = sink;
+    this.image = new BufferedImage(
+      model.frameWidth(),
+      model.frameHeight(),
+      BufferedImage.TYPE_INT_ARGB
+    );
+    this.frame = ((DataBufferInt) this.image.getRaster().getDataBuffer()).getData();
+    model.setObserver(this);
+  }
+
+  public ProgressRenderer(Model model) {
+    this(model, null);
+  }
+
+  @Override
+  public void step(int[] dirty, int count) {
+    this.model.draw(this.frame, dirty, count);
+
+    if (this.sink != null) {
+      try {
+        this.sink.accept(this.step, this.image);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    this.step++;
+  }
+
+  /**
+   * Returns the live image, backed by the frame the renderer draws into.
+   */
+  public BufferedImage getImage() {
+    return this.image;
+  }
+
+  /**
+   * Number of frames drawn so far.
+   */
+  public int getStep() {
+    return this.step;
+  }
+
+  /**
+   * Returns a sink that writes every frame to directory/frameN.png.
+   */
+  public static FrameSink writeTo(File directory) {
+    directory.mkdirs();
+    return (int step, BufferedImage frame) -> ImageIO.write(
+      frame,
+      "png",
+      new File(directory, String.format("frame%05d.png", step))
+    );
+  }
+}
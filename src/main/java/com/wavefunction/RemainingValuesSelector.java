@@ -0,0 +1,79 @@
+package com.wavefunction;
+
+import java.util.Arrays;
+
+/**
+ * Heuristic.MINIMUM_REMAINING_VALUES: the cell with the fewest allowed
+ * patterns. Undecided cells sit in one doubly linked bucket per count, so a
+ * ban moves a cell in O(1) and no floating point work is done at all.
+ */
+final class RemainingValuesSelector implements CellSelector {
+  private final Model model;
+  private final int[] head;
+  private final int[] next, previous;
+  private int lowest;
+
+  RemainingValuesSelector(Model model) {
+    this.model = model;
+    this.head = new int[model.T + 1];
+    this.next = new int[model.wave.length];
+    this.previous = new int[model.wave.length];
+  }
+
+  @Override
+  public void clear() {
+    Model model = this.model;
+    Arrays.fill(this.head, -1);
+    Arrays.fill(this.next, -1);
+    Arrays.fill(this.previous, -1);
+    this.lowest = model.T;
+
+    for (int i = model.wave.length - 1; i >= 0; i--) if (
+      model.sumsOfOnes[i] > 1 && !model.onBoundary(i % model.FMX, i / model.FMX)
+    ) this.link(i, model.sumsOfOnes[i]);
+  }
+
+  @Override
+  public void banned(int i, int t, int amount) {
+    if (!this.linked(i, amount + 1)) return;
+    this.unlink(i, amount + 1);
+    if (amount > 1) this.link(i, amount);
+  }
+
+  @Override
+  public void unbanned(int i, int t, int amount) {
+    Model model = this.model;
+    if (amount < 2 || model.onBoundary(i % model.FMX, i / model.FMX)) return;
+    if (amount > 2) this.unlink(i, amount - 1);
+    this.link(i, amount);
+  }
+
+  @Override
+  public int next() {
+    for (; this.lowest < this.head.length; this.lowest++) if (
+      this.head[this.lowest] >= 0
+    ) return this.head[this.lowest];
+    return -1;
+  }
+
+  private boolean linked(int i, int count) {
+    return this.previous[i] >= 0 || this.head[count] == i;
+  }
+
+  private void link(int i, int count) {
+    int first = this.head[count];
+    this.next[i] = first;
+    this.previous[i] = -1;
+    if (first >= 0) this.previous[first] = i;
+    this.head[count] = i;
+    if (count < this.lowest) this.lowest = count;
+  }
+
+  private void unlink(int i, int count) {
+    int after = this.next[i], before = this.previous[i];
+    if (before >= 0) this.next[before] = after; else this.head[count] = after;
+    if (after >= 0) this.previous[after] = before;
+    this.next[i] = -1;
+    this.previous[i] = -1;
+  }
+}
@@ -0,0 +1,55 @@
+package com.wavefunction;
+
+/**
+ * The compiled rules of a model: its patterns' weights and propagator, and
+ * the values derived from them once for every run (entropy terms and the
+ * initial compatible counters).
+ * A ruleset is never modified after construction, so one instance can be
+ * shared by any number of models running on different threads.
+ */
+final class Ruleset {
+  final int T, D;
+  final int[][][] propagator;
+  final double[] weights;
+  final double[] weightLogWeights;
+  final double sumOfWeights, sumOfWeightLogWeights, startingEntropy;
+  final int[] compatibleTemplate;
+
+  /**
+   * Ruleset of a 2D model, whose four directions are those of Model.DX/DY.
+   * @param propagator For every direction and pattern, the patterns allowed next to it.
+   * @param weights Weight of every pattern.
+   */
+  Ruleset(int[][][] propagator, double[] weights) {
+    this(propagator, weights, Model.oppposite);
+  }
+
+  /**
+   * @param opposite For every direction, the index of the opposite one.
+   */
+  Ruleset(int[][][] propagator, double[] weights, int[] opposite) {
+    this.T = weights.length;
+    this.D = propagator.length;
+    this.propagator = propagator;
+    this.weights = weights;
+
+    this.weightLogWeights = new double[this.T];
+    double sumOfWeights = 0, sumOfWeightLogWeights = 0;
+
+    for (int t = 0; t < this.T; t++) {
+      this.weightLogWeights[t] = weights[t] * Math.log(weights[t]);
+      sumOfWeights += weights[t];
+      sumOfWeightLogWeights += this.weightLogWeights[t];
+    }
+
+    this.sumOfWeights = sumOfWeights;
+    this.sumOfWeightLogWeights = sumOfWeightLogWeights;
+    this.startingEntropy =
+      Math.log(sumOfWeights) - sumOfWeightLogWeights / sumOfWeights;
+
+    this.compatibleTemplate = new int[this.T * this.D];
+    for (int t = 0; t < this.T; t++) for (int d = 0; d < this.D; d++) {
+      this.compatibleTemplate[t * this.D + d] = propagator[opposite[d]][t].length;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package com.wavefunction;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event of one run of a model with SolverMetrics attached.
+ * Its duration spans the run, from begin() to the last observation.
+ */
+@Name("com.wavefunction.Run")
+@Label("WFC Run")
+@Category("Wave Function Collapse")
+@Description("One run of a model, with its solver counters")
+final class RunEvent extends Event {
+  @Label("Seed")
+  int seed;
+
+  @Label("Solved")
+  boolean solved;
+
+  @Label("Retries")
+  @Description("1 if the run was started after a contradiction in the previous one")
+  long retries;
+
+  @Label("Observations")
+  long observations;
+
+  @Label("Bans")
+  long bans;
+
+  @Label("Stack Pops")
+  long pops;
+
+  @Label("Contradictions")
+  long contradictions;
+
+  @Label("Backtracks")
+  long backtracks;
+
+  @Label("Peak Stack Depth")
+  int peakStack;
+
+  @Label("Clear Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long clearNanos;
+
+  @Label("Observe Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long observeNanos;
+
+  @Label("Propagate Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long propagateNanos;
+}
@@ -0,0 +1,40 @@
+package com.wavefunction;
+
+/**
+ * Heuristic.SCANLINE: the first undecided cell in index order. A cursor only
+ * moves forward during a run, and back when backtracking reopens a cell.
+ */
+final class ScanlineSelector implements CellSelector {
+  private final Model model;
+  private int cursor;
+
+  ScanlineSelector(Model model) {
+    this.model = model;
+  }
+
+  @Override
+  public void clear() {
+    this.cursor = 0;
+  }
+
+  @Override
+  public void banned(int i, int t, int amount) {}
+
+  @Override
+  public void unbanned(int i, int t, int amount) {
+    if (i < this.cursor) this.cursor = i;
+  }
+
+  @Override
+  public int next() {
+    Model model = this.model;
+    while (this.cursor < model.wave.length) {
+      int i = this.cursor;
+      if (
+        model.sumsOfOnes[i] > 1 && !model.onBoundary(i % model.FMX, i / model.FMX)
+      ) return i;
+      this.cursor++;
+    }
+    return -1;
+  }
+}
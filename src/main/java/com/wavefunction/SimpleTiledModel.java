@@ -1,13 +1,14 @@
 package com.wavefunction;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.util.*;
 import java.util.function.*;
 import java.util.stream.IntStream;
 
 public class SimpleTiledModel extends Model {
-  List<Color[]> tiles;
+  List<int[]> tiles;
+  double[][] weightedTiles;
   List<String> tilenames;
   int tilesize;
   boolean black;
@@ -38,40 +39,50 @@ public class SimpleTiledModel extends Model {
     boolean periodic,
     boolean black,
     boolean unique
+  ) {
+    this(
+      tilesize,
+      tileSymmetries,
+      neighborData,
+      SimpleTiledModel.subset(subsetData, subsetName),
+      SimpleTiledModel.variants(
+        tilesize,
+        tileSymmetries,
+        tileData,
+        SimpleTiledModel.subset(subsetData, subsetName),
+        unique
+      ),
+      width,
+      height,
+      periodic,
+      black
+    );
+  }
+
+  /**
+   * Creates a Simple Tiled Model from tile images already decoded into
+   * packed ARGB rasters.
+   * @param subset Names of the tiles to use, or null for all of them.
+   * @param variants For every tile name, one tilesize x tilesize raster per
+   * variant of its symmetry (see cardinality()).
+   */
+  SimpleTiledModel(
+    int tilesize,
+    List<Map<String, String>> tileSymmetries,
+    List<Map<String, String>> neighborData,
+    List<String> subset,
+    Map<String, int[][]> variants,
+    int width,
+    int height,
+    boolean periodic,
+    boolean black
   ) {
     super(width, height);
     this.periodic = periodic;
     this.black = black;
     this.tilesize = tilesize;
-    
-    List<String> subset = null;
-    if (
-      subsetName != null &&
-      subsetData != null &&
-      subsetData.containsKey(subsetName)
-    ) {
-      subset = Arrays.asList(subsetData.get(subsetName));
-    }
-    
 
-    Function<BiFunction<Integer, Integer, Color>, Color[]> tile =
-      (BiFunction<Integer, Integer, Color> f) -> {
-        Color[] result = new Color[this.tilesize * this.tilesize];
-        for (int y = 0; y < this.tilesize; y++) for (int x = 0; x <
-          this.tilesize; x++) result[x + y * tilesize] = f.apply(x, y);
-        return result;
-      };
-
-    Function<Color[], Color[]> rotate =
-      (Color[] array) -> tile.apply(
-        (Integer x, Integer y) -> array[this.tilesize -
-            1 -
-            y +
-            x *
-            this.tilesize]
-      );
-
-    this.tiles = new ArrayList<Color[]>();
+    this.tiles = new ArrayList<int[]>();
     this.tilenames = new ArrayList<String>();
     
     List<Double> tempStationary = new ArrayList<Double>();
@@ -137,30 +148,10 @@ public class SimpleTiledModel extends Model {
         action.add(map[t]);
       }
       
-      if (unique) {
-        for (int t = 0; t < cardinality; t++) {
-          BufferedImage xtileData = tileData.get(tilename);
-          this.tiles.add(
-              tile.apply(
-                (Integer x, Integer y) -> new Color(xtileData.getRGB(x, y))
-              )
-            );
-          this.tilenames.add(String.format("%s %s", tilename, t));
-        }
-      } else {
-        BufferedImage xtileData = tileData.get(tilename);
-        this.tiles.add(
-            tile.apply(
-              (Integer x, Integer y) -> new Color(xtileData.getRGB(x, y))
-            )
-          );
-        
-        this.tilenames.add(String.format("%s 0", tilename));
-        
-        for (int t = 1; t < cardinality; t++) {
-          this.tiles.add(rotate.apply(this.tiles.get(this.T + t - 1)));
-          this.tilenames.add(String.format("%s %s", tilename, t));
-        }
+      int[][] rasters = variants.get(tilename);
+      for (int t = 0; t < cardinality; t++) {
+        this.tiles.add(rasters[t]);
+        this.tilenames.add(String.format("%s %s", tilename, t));
       }
 
       for (int t = 0; t < cardinality; t++) tempStationary.add(
@@ -169,13 +160,26 @@ public class SimpleTiledModel extends Model {
     }
 
     this.T = action.size();
-    this.weights = tempStationary.toArray(new Double[0]);
+    double[] weights = new double[this.T];
+    for (int t = 0; t < this.T; t++) weights[t] = tempStationary.get(t);
+
+    this.weightedTiles = new double[this.T][];
+    for (int t = 0; t < this.T; t++) {
+      int[] pixels = this.tiles.get(t);
+      double[] weighted = new double[3 * pixels.length];
+      for (int p = 0; p < pixels.length; p++) {
+        weighted[3 * p] = ((pixels[p] >> 16) & 0xff) * weights[t];
+        weighted[3 * p + 1] = ((pixels[p] >> 8) & 0xff) * weights[t];
+        weighted[3 * p + 2] = (pixels[p] & 0xff) * weights[t];
+      }
+      this.weightedTiles[t] = weighted;
+    }
 
-    this.propagator = new int[4][][];
+    int[][][] propagator = new int[4][][];
     boolean[][][] tempPropagator = new boolean[4][][];
     for (int d = 0; d < 4; d++) {
       tempPropagator[d] = new boolean[this.T][];
-      this.propagator[d] = new int[this.T][];
+      propagator[d] = new int[this.T][];
       for (int t = 0; t < this.T; t++) tempPropagator[d][t] =
         new boolean[this.T];
     }
@@ -242,16 +246,117 @@ public class SimpleTiledModel extends Model {
       
 
       int ST = sp.size();
-      this.propagator[d][t1] = new int[ST];
-      for (int st = 0; st < ST; st++) this.propagator[d][t1][st] = sp.get(st);
+      propagator[d][t1] = new int[ST];
+      for (int st = 0; st < ST; st++) propagator[d][t1][st] = sp.get(st);
       
     }
+
+    this.rules = new Ruleset(propagator, weights);
+  }
+
+  /**
+   * Number of variants of a tile with the given symmetry.
+   */
+  static int cardinality(String symmetry) {
+    switch (symmetry) {
+      case "L":
+      case "T":
+        return 4;
+      case "I":
+      case "\\":
+        return 2;
+      default:
+        return 1;
+    }
+  }
+
+  static List<String> subset(Map<String, String[]> subsetData, String subsetName) {
+    if (
+      subsetName == null ||
+      subsetData == null ||
+      !subsetData.containsKey(subsetName)
+    ) return null;
+    return Arrays.asList(subsetData.get(subsetName));
+  }
+
+  /**
+   * Decodes the tiles of a subset and builds their variants: the tile
+   * rotated by a quarter turn per variant, or the same image for every
+   * variant when unique is set.
+   */
+  static Map<String, int[][]> variants(
+    int tilesize,
+    List<Map<String, String>> tileSymmetries,
+    Map<String, BufferedImage> tileData,
+    List<String> subset,
+    boolean unique
+  ) {
+    Map<String, int[][]> variants = new HashMap<String, int[][]>();
+    for (Map<String, String> xtile : tileSymmetries) {
+      String tilename = xtile.get("name");
+      if (subset != null && !subset.contains(tilename)) continue;
+
+      int[] tile = tileData
+        .get(tilename)
+        .getRGB(0, 0, tilesize, tilesize, null, 0, tilesize);
+      int cardinality = SimpleTiledModel.cardinality(
+        xtile.getOrDefault("symmetry", "X")
+      );
+
+      if (unique) {
+        int[][] rasters = new int[cardinality][];
+        Arrays.fill(rasters, tile);
+        variants.put(tilename, rasters);
+      } else variants.put(
+        tilename,
+        SimpleTiledModel.rotations(tile, tilesize, cardinality)
+      );
+    }
+    return variants;
+  }
+
+  /**
+   * Returns count rasters, each rotated a quarter turn from the previous one.
+   */
+  static int[][] rotations(int[] tile, int tilesize, int count) {
+    int[][] result = new int[count][];
+    result[0] = tile;
+    for (int k = 1; k < count; k++) {
+      int[] previous = result[k - 1], rotated = new int[tilesize * tilesize];
+      for (int y = 0; y < tilesize; y++) for (int x = 0; x < tilesize; x++) rotated[x +
+          y * tilesize] =
+        previous[tilesize - 1 - y + x * tilesize];
+      result[k] = rotated;
+    }
+    return result;
+  }
+
+  private SimpleTiledModel(SimpleTiledModel rules, int width, int height) {
+    super(rules, width, height);
+    this.tiles = rules.tiles;
+    this.weightedTiles = rules.weightedTiles;
+    this.tilenames = rules.tilenames;
+    this.tilesize = rules.tilesize;
+    this.black = rules.black;
+  }
+
+  @Override
+  public SimpleTiledModel fork(int width, int height) {
+    return new SimpleTiledModel(this, width, height);
   }
 
   @Override
   protected boolean onBoundary(int x, int y) {
     return !this.periodic && (x < 0 || y < 0 || x >= this.FMX || y >= this.FMY);
   }
+
+  /**
+   * Returns the pattern of a tile variant, such as "line 1", for use in
+   * Constraints, or -1 if the subset does not contain it.
+   */
+  public int pattern(String tilename) {
+    return this.tilenames.indexOf(tilename);
+  }
   
   public String textOutput() {
 	  StringBuilder result = new StringBuilder();
@@ -265,72 +370,96 @@ public class SimpleTiledModel extends Model {
 	  return result.toString();
   }
 
+  @Override
+  int frameWidth() {
+    return this.FMX * this.tilesize;
+  }
+
+  @Override
+  int frameHeight() {
+    return this.FMY * this.tilesize;
+  }
+
+  @Override
+  void draw(int[] frame, int[] cells, int count) {
+    for (int k = 0; k < count; k++) this.drawBlend(frame, cells[k]);
+  }
+
+  /**
+   * Draws cell i as the weighted average of the tiles it still allows.
+   */
+  private void drawBlend(int[] frame, int i) {
+    int stride = this.FMX * this.tilesize;
+    int origin = (i % this.FMX) * this.tilesize +
+      (i / this.FMX) * this.tilesize * stride;
+
+    if (this.black && this.wave.count(i) == this.T) {
+      for (int yt = 0; yt < this.tilesize; yt++) Arrays.fill(
+        frame,
+        origin + yt * stride,
+        origin + yt * stride + this.tilesize,
+        0xff000000
+      );
+      return;
+    }
+
+    double sum = 0;
+    for (int t = this.wave.first(i); t >= 0; t = this.wave.next(i, t + 1)) sum +=
+      this.rules.weights[t];
+    double lambda = 1.0 / sum;
+
+    for (int yt = 0; yt < this.tilesize; yt++) for (int xt = 0; xt <
+      this.tilesize; xt++) {
+      int p = 3 * (xt + yt * this.tilesize);
+      double r = 0, g = 0, b = 0;
+      for (int t = this.wave.first(i); t >= 0; t = this.wave.next(i, t + 1)) {
+        double[] weighted = this.weightedTiles[t];
+        r += weighted[p] * lambda;
+        g += weighted[p + 1] * lambda;
+        b += weighted[p + 2] * lambda;
+      }
+      frame[origin + xt + yt * stride] =
+        0xff000000 | (int) r << 16 | (int) g << 8 | (int) b;
+    }
+  }
+
+  /**
+   * Returns a new BufferedImage of the generation, or of the current
+   * superposition if the model has not been observed.
+   * Rows of tiles are drawn in parallel, straight into the image's raster.
+   */
   @Override
   public BufferedImage graphics() {
+    long start = this.metrics != null ? System.nanoTime() : 0;
     BufferedImage result = new BufferedImage(
       this.FMX * this.tilesize,
       this.FMY * this.tilesize,
       BufferedImage.TYPE_INT_RGB
     );
-    
-//    System.out.println(this.observed);
-
-    if (this.observed != null) {
-      for (int x = 0; x < this.FMX; x++) for (int y = 0; y < this.FMY; y++) {
-        Color[] tile = this.tiles.get(this.observed[x + y * this.FMX]);
-        for (int yt = 0; yt < this.tilesize; yt++) for (int xt = 0; xt <
-          this.tilesize; xt++) {
-          Color c = tile[xt + yt * this.tilesize];
-          result.setRGB(
-            x * this.tilesize + xt,
-            y * this.tilesize + yt,
-            c.getRGB()
-          );
-        }
-      }
-    } else {
-      for (int x = 0; x < this.FMX; x++) for (int y = 0; y < this.FMY; y++) {
-        boolean[] a = this.wave[x + y * this.FMX];
-        int amount = IntStream
-          .range(0, a.length)
-          .map(idx -> a[idx] ? 1 : 0)
-          .sum();
-        
-        
-        double lambda =
-          1.0 /
-            IntStream
-              .range(0, this.T)
-              .filter(idx -> a[idx])
-              .mapToDouble(idx -> this.weights[idx])
-              .sum();
-
-        for (int yt = 0; yt < this.tilesize; yt++) for (int xt = 0; xt <
-          this.tilesize; xt++) {
-          if (this.black && amount == this.T) result.setRGB(
-            x * this.tilesize + xt,
-            y * this.tilesize * yt,
-            (int) 0xff000000
-          ); else {
-            double r = 0, g = 0, b = 0;
-            for (int t = 0; t < this.T; t++) if (a[t]) {
-              Color c = this.tiles.get(t)[xt + yt * this.tilesize];
-              r += c.getRed() * this.weights[t] * lambda;
-              g += c.getGreen() * this.weights[t] * lambda;
-              b += c.getBlue() * this.weights[t] * lambda;
-            }
-
-            Color newColor = new Color((int) r, (int) g, (int) b);
-            result.setRGB(
-              x * tilesize + xt,
-              y * tilesize + yt,
-              newColor.getRGB()
-            );
-          }
+    int[] frame = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+    int stride = this.FMX * this.tilesize;
+
+    IntStream.range(0, this.FMY).parallel().forEach(y -> {
+      for (int x = 0; x < this.FMX; x++) {
+        int i = x + y * this.FMX;
+        if (this.observed == null) {
+          this.drawBlend(frame, i);
+          continue;
         }
+
+        int[] tile = this.tiles.get(this.observed[i]);
+        int origin = x * this.tilesize + y * this.tilesize * stride;
+        for (int yt = 0; yt < this.tilesize; yt++) System.arraycopy(
+          tile,
+          yt * this.tilesize,
+          frame,
+          origin + yt * stride,
+          this.tilesize
+        );
       }
-    }
+    });
 
+    if (this.metrics != null) this.metrics.rendered(start);
     return result;
   }
 }
@@ -0,0 +1,258 @@
+package com.wavefunction;
+
+/**
+ * Counters and phase timings of the runs of one model.
+ * Attach with Model.setMetrics(); a model without metrics only pays a null
+ * check per ban.
+ *
+ * Counters add up over every run of the model. After each run a Snapshot of
+ * that run alone goes to the listener, if any, and a com.wavefunction.Run
+ * event is committed to Flight Recorder when it records that event.
+ *
+ * A run started after a run of the model that ended in a contradiction counts
+ * as a retry; reset() also forgets that last outcome.
+ *
+ * The counters are updated by the thread running the model, without
+ * synchronization. Read them from that thread, or once it is done.
+ */
+public final class SolverMetrics {
+
+  /**
+   * Immutable copy of the counters, in nanoseconds for the timings.
+   */
+  public static final class Snapshot {
+    public final long runs;
+    public final long retries;
+    public final long observations;
+    public final long bans;
+    public final long pops;
+    public final long contradictions;
+    public final long backtracks;
+    public final int peakStack;
+    public final long clearNanos;
+    public final long observeNanos;
+    public final long propagateNanos;
+    public final long renderNanos;
+
+    Snapshot(
+      long runs,
+      long retries,
+      long observations,
+      long bans,
+      long pops,
+      long contradictions,
+      long backtracks,
+      int peakStack,
+      long clearNanos,
+      long observeNanos,
+      long propagateNanos,
+      long renderNanos
+    ) {
+      this.runs = runs;
+      this.retries = retries;
+      this.observations = observations;
+      this.bans = bans;
+      this.pops = pops;
+      this.contradictions = contradictions;
+      this.backtracks = backtracks;
+      this.peakStack = peakStack;
+      this.clearNanos = clearNanos;
+      this.observeNanos = observeNanos;
+      this.propagateNanos = propagateNanos;
+      this.renderNanos = renderNanos;
+    }
+
+    /**
+     * Counters accumulated since an earlier snapshot. The peak stack depth is
+     * kept as is.
+     */
+    public Snapshot minus(Snapshot earlier) {
+      return new Snapshot(
+        this.runs - earlier.runs,
+        this.retries - earlier.retries,
+        this.observations - earlier.observations,
+        this.bans - earlier.bans,
+        this.pops - earlier.pops,
+        this.contradictions - earlier.contradictions,
+        this.backtracks - earlier.backtracks,
+        this.peakStack,
+        this.clearNanos - earlier.clearNanos,
+        this.observeNanos - earlier.observeNanos,
+        this.propagateNanos - earlier.propagateNanos,
+        this.renderNanos - earlier.renderNanos
+      );
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+        "runs=%d retries=%d observations=%d bans=%d pops=%d contradictions=%d " +
+        "backtracks=%d peakStack=%d clear=%.3fms observe=%.3fms " +
+        "propagate=%.3fms render=%.3fms",
+        this.runs,
+        this.retries,
+        this.observations,
+        this.bans,
+        this.pops,
+        this.contradictions,
+        this.backtracks,
+        this.peakStack,
+        this.clearNanos / 1e6,
+        this.observeNanos / 1e6,
+        this.propagateNanos / 1e6,
+        this.renderNanos / 1e6
+      );
+    }
+  }
+
+  private final MetricsListener listener;
+
+  long runs, retries, observations, bans, pops, contradictions, backtracks;
+  int peakStack, runPeakStack;
+  long clearNanos, observeNanos, propagateNanos, renderNanos;
+
+  private long last;
+  private int seed;
+  private boolean failed;
+  private Snapshot start;
+  private RunEvent event;
+
+  public SolverMetrics() {
+    this(null);
+  }
+
+  /**
+   * @param listener Notified after every run, or null.
+   */
+  public SolverMetrics(MetricsListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Returns the counters of every run so far.
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(
+      this.runs,
+      this.retries,
+      this.observations,
+      this.bans,
+      this.pops,
+      this.contradictions,
+      this.backtracks,
+      this.peakStack,
+      this.clearNanos,
+      this.observeNanos,
+      this.propagateNanos,
+      this.renderNanos
+    );
+  }
+
+  public void reset() {
+    this.runs = this.retries = this.observations = this.bans = this.pops = 0;
+    this.contradictions = this.backtracks = 0;
+    this.peakStack = this.runPeakStack = 0;
+    this.clearNanos = this.observeNanos = this.propagateNanos = 0;
+    this.renderNanos = 0;
+    this.failed = false;
+  }
+
+  /**
+   * Called by begin() before the wave is cleared.
+   */
+  void started(int seed) {
+    this.start = this.snapshot();
+    this.runs++;
+    if (this.failed) this.retries++;
+    this.runPeakStack = 0;
+    this.seed = seed;
+    this.event = new RunEvent();
+    this.event.begin();
+    this.last = System.nanoTime();
+  }
+
+  void cleared() {
+    long now = System.nanoTime();
+    this.clearNanos += now - this.last;
+    this.last = now;
+  }
+
+  void pushed(int stacksize) {
+    if (stacksize > this.runPeakStack) {
+      this.runPeakStack = stacksize;
+      if (stacksize > this.peakStack) this.peakStack = stacksize;
+    }
+  }
+
+  /**
+   * Starts timing a step.
+   */
+  void mark() {
+    this.last = System.nanoTime();
+  }
+
+  void observed(Boolean result) {
+    long now = System.nanoTime();
+    this.observeNanos += now - this.last;
+    this.last = now;
+
+    if (result == null) this.observations++; else if (
+      !result
+    ) this.contradictions++;
+  }
+
+  void propagated() {
+    long now = System.nanoTime();
+    this.propagateNanos += now - this.last;
+    this.last = now;
+  }
+
+  void rendered(long start) {
+    this.renderNanos += System.nanoTime() - start;
+  }
+
+  /**
+   * Called once a run is solved, failed or cancelled.
+   */
+  void finished(boolean solved) {
+    if (this.start == null) return;
+
+    Snapshot run = this.snapshot().minus(this.start);
+    run = new Snapshot(
+      run.runs,
+      run.retries,
+      run.observations,
+      run.bans,
+      run.pops,
+      run.contradictions,
+      run.backtracks,
+      this.runPeakStack,
+      run.clearNanos,
+      run.observeNanos,
+      run.propagateNanos,
+      run.renderNanos
+    );
+    this.start = null;
+    this.failed = !solved && run.contradictions > 0;
+
+    RunEvent event = this.event;
+    this.event = null;
+    if (event.shouldCommit()) {
+      event.seed = this.seed;
+      event.solved = solved;
+      event.retries = run.retries;
+      event.observations = run.observations;
+      event.bans = run.bans;
+      event.pops = run.pops;
+      event.contradictions = run.contradictions;
+      event.backtracks = run.backtracks;
+      event.peakStack = run.peakStack;
+      event.clearNanos = run.clearNanos;
+      event.observeNanos = run.observeNanos;
+      event.propagateNanos = run.propagateNanos;
+      event.commit();
+    }
+
+    if (this.listener != null) this.listener.finished(run, solved);
+  }
+}
@@ -0,0 +1,17 @@
+package com.wavefunction;
+
+/**
+ * Gets notified by a model after every step of a run.
+ * @see Model#setObserver(StepObserver)
+ */
+@FunctionalInterface
+public interface StepObserver {
+  /**
+   * Called once the run has been cleared, then after every observation has
+   * been propagated.
+   * @param dirty Cells whose possible patterns changed since the last call,
+   * in the first count entries. Only valid during the call.
+   * @param count Number of dirty cells.
+   */
+  void step(int[] dirty, int count);
+}
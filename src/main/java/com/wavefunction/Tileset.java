@@ -0,0 +1,227 @@
+package com.wavefunction;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * A tileset read from a directory holding a data.xml descriptor and one PNG
+ * per tile, in the format of the original WFC tilesets:
+ *
+ * <pre>
+ * &lt;set size="10" unique="False"&gt;
+ *   &lt;tiles&gt;&lt;tile name="corner" symmetry="L" weight="1.0"/&gt;...&lt;/tiles&gt;
+ *   &lt;neighbors&gt;&lt;neighbor left="corner 1" right="empty"/&gt;...&lt;/neighbors&gt;
+ *   &lt;subsets&gt;&lt;subset name="Standard"&gt;&lt;tile name="corner"/&gt;...&lt;/subset&gt;&lt;/subsets&gt;
+ * &lt;/set&gt;
+ * </pre>
+ *
+ * Tile images are decoded in parallel, once, into packed ARGB rasters with
+ * all their variants: name.png rotated for every variant, or name k.png for
+ * variant k when the set is unique.
+ * Tilesets are cached for the whole process by directory, and every subset
+ * is compiled into a SimpleTiledModel once; model() then only forks it.
+ */
+public final class Tileset {
+  private static final Map<Path, Tileset> TILESETS =
+    new ConcurrentHashMap<Path, Tileset>();
+
+  private final int tilesize;
+  private final List<Map<String, String>> tiles;
+  private final List<Map<String, String>> neighbors;
+  private final Map<String, String[]> subsets;
+  private final Map<String, int[][]> variants;
+  private final Map<String, SimpleTiledModel> models =
+    new ConcurrentHashMap<String, SimpleTiledModel>();
+
+  private Tileset(
+    int tilesize,
+    List<Map<String, String>> tiles,
+    List<Map<String, String>> neighbors,
+    Map<String, String[]> subsets,
+    Map<String, int[][]> variants
+  ) {
+    this.tilesize = tilesize;
+    this.tiles = tiles;
+    this.neighbors = neighbors;
+    this.subsets = subsets;
+    this.variants = variants;
+  }
+
+  /**
+   * Returns the tileset of a directory, reading it the first time.
+   */
+  public static Tileset load(Path directory) throws IOException {
+    Path key = directory.toAbsolutePath().normalize();
+    Tileset tileset = TILESETS.get(key);
+    if (tileset != null) return tileset;
+
+    tileset = Tileset.read(key);
+    Tileset previous = TILESETS.putIfAbsent(key, tileset);
+    return previous != null ? previous : tileset;
+  }
+
+  /**
+   * Forgets every cached tileset, so changed files are read again.
+   */
+  public static void clearCache() {
+    TILESETS.clear();
+  }
+
+  public Set<String> subsets() {
+    return Collections.unmodifiableSet(this.subsets.keySet());
+  }
+
+  /**
+   * Returns a new model over a subset of the tileset. Only the first call for
+   * a subset builds its rules; later ones fork them.
+   * @param subset Name of the subset, or null for every tile.
+   * @param width Output width in tiles.
+   * @param height Output height in tiles.
+   * @param periodic Should the output generation be tileable.
+   */
+  public SimpleTiledModel model(
+    String subset,
+    int width,
+    int height,
+    boolean periodic
+  ) {
+    if (subset != null && !this.subsets.containsKey(subset)) {
+      throw new IllegalArgumentException("Unknown subset " + subset);
+    }
+
+    SimpleTiledModel rules = this.models.computeIfAbsent(
+      subset == null ? "" : subset,
+      name -> new SimpleTiledModel(
+        this.tilesize,
+        this.tiles,
+        this.neighbors,
+        SimpleTiledModel.subset(this.subsets, subset),
+        this.variants,
+        1,
+        1,
+        false,
+        false
+      )
+    );
+
+    SimpleTiledModel model = rules.fork(width, height);
+    model.periodic = periodic;
+    return model;
+  }
+
+  private static Tileset read(Path directory) throws IOException {
+    Element set;
+    try {
+      Document document = DocumentBuilderFactory
+        .newInstance()
+        .newDocumentBuilder()
+        .parse(directory.resolve("data.xml").toFile());
+      set = document.getDocumentElement();
+    } catch (ParserConfigurationException | SAXException e) {
+      throw new IOException("Invalid tileset descriptor in " + directory, e);
+    }
+
+    int tilesize = Integer.parseInt(Main.getAttributeWithDefault(set, "size", "16"));
+    boolean unique = Boolean.parseBoolean(
+      Main.getAttributeWithDefault(set, "unique", "false")
+    );
+
+    List<Map<String, String>> tiles = new ArrayList<Map<String, String>>();
+    NodeList nodes = set.getElementsByTagName("tile");
+    for (int k = 0; k < nodes.getLength(); k++) {
+      Element tile = (Element) nodes.item(k);
+      if (!"tiles".equals(tile.getParentNode().getNodeName())) continue;
+
+      Map<String, String> xtile = new HashMap<String, String>();
+      xtile.put("name", tile.getAttribute("name"));
+      xtile.put("symmetry", Main.getAttributeWithDefault(tile, "symmetry", "X"));
+      xtile.put("weight", Main.getAttributeWithDefault(tile, "weight", "1.0"));
+      tiles.add(xtile);
+    }
+
+    List<Map<String, String>> neighbors = new ArrayList<Map<String, String>>();
+    nodes = set.getElementsByTagName("neighbor");
+    for (int k = 0; k < nodes.getLength(); k++) {
+      Element neighbor = (Element) nodes.item(k);
+      Map<String, String> xneighbor = new HashMap<String, String>();
+      xneighbor.put("left", neighbor.getAttribute("left"));
+      xneighbor.put("right", neighbor.getAttribute("right"));
+      neighbors.add(xneighbor);
+    }
+
+    Map<String, String[]> subsets = new LinkedHashMap<String, String[]>();
+    nodes = set.getElementsByTagName("subset");
+    for (int k = 0; k < nodes.getLength(); k++) {
+      Element subset = (Element) nodes.item(k);
+      NodeList members = subset.getElementsByTagName("tile");
+      String[] names = new String[members.getLength()];
+      for (int m = 0; m < names.length; m++) names[m] =
+        ((Element) members.item(m)).getAttribute("name");
+      subsets.put(subset.getAttribute("name"), names);
+    }
+
+    Map<String, int[][]> variants = new ConcurrentHashMap<String, int[][]>();
+    try {
+      tiles
+        .parallelStream()
+        .forEach(
+          xtile -> variants.put(
+            xtile.get("name"),
+            Tileset.decode(directory, xtile, tilesize, unique)
+          )
+        );
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    return new Tileset(tilesize, tiles, neighbors, subsets, variants);
+  }
+
+  private static int[][] decode(
+    Path directory,
+    Map<String, String> xtile,
+    int tilesize,
+    boolean unique
+  ) {
+    String name = xtile.get("name");
+    int cardinality = SimpleTiledModel.cardinality(xtile.get("symmetry"));
+
+    try {
+      if (!unique) return SimpleTiledModel.rotations(
+        Tileset.raster(directory.resolve(name + ".png"), tilesize),
+        tilesize,
+        cardinality
+      );
+
+      int[][] rasters = new int[cardinality][];
+      for (int t = 0; t < cardinality; t++) rasters[t] =
+        Tileset.raster(directory.resolve(name + " " + t + ".png"), tilesize);
+      return rasters;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static int[] raster(Path file, int tilesize) throws IOException {
+    BufferedImage image = ImageIO.read(file.toFile());
+    if (image == null) throw new IOException("Not an image: " + file);
+    return image.getRGB(0, 0, tilesize, tilesize, null, 0, tilesize);
+  }
+}
@@ -0,0 +1,86 @@
+package com.wavefunction;
+
+import java.util.Arrays;
+
+/**
+ * Undo log of a Model run. Records every ban, with the counters it cleared,
+ * and every counter decrement made by propagate(), so the wave can be rewound
+ * to the state it had before an observation.
+ *
+ * Entries are pushed as longs. A decrement is stored as the complement of the
+ * counter index, so it is negative. A ban pushes its two packed counter pairs
+ * followed by its (cell, pattern) entry, which is read first when rewinding.
+ */
+final class Trail {
+  private long[] entries = new long[1024];
+  private int size;
+
+  private long[] decisions = new long[64];
+  private int[] marks = new int[64];
+  private int depth;
+
+  int size() {
+    return this.size;
+  }
+
+  int depth() {
+    return this.depth;
+  }
+
+  void clear() {
+    this.size = 0;
+    this.depth = 0;
+  }
+
+  void decrement(int index) {
+    this.push(~(long) index);
+  }
+
+  void ban(int i, int t, int[] compatible, int comp) {
+    this.push(Trail.pair(compatible[comp], compatible[comp + 1]));
+    this.push(Trail.pair(compatible[comp + 2], compatible[comp + 3]));
+    this.push(Model.stackEntry(i, t));
+  }
+
+  /**
+   * Remembers that cell i was collapsed to pattern t at the current point of
+   * the trail.
+   */
+  void decide(int i, int t) {
+    if (this.depth == this.decisions.length) {
+      this.decisions = Arrays.copyOf(this.decisions, this.depth * 2);
+      this.marks = Arrays.copyOf(this.marks, this.depth * 2);
+    }
+
+    this.decisions[this.depth] = Model.stackEntry(i, t);
+    this.marks[this.depth] = this.size;
+    this.depth++;
+  }
+
+  /**
+   * Forgets the last decision and returns it. The trail must then be rewound
+   * to mark().
+   */
+  long popDecision() {
+    this.depth--;
+    return this.decisions[this.depth];
+  }
+
+  int mark() {
+    return this.marks[this.depth];
+  }
+
+  long pop() {
+    return this.entries[--this.size];
+  }
+
+  private void push(long entry) {
+    if (this.size == this.entries.length) this.entries =
+      Arrays.copyOf(this.entries, this.size * 2);
+    this.entries[this.size++] = entry;
+  }
+
+  static long pair(int a, int b) {
+    return ((long) a << 32) | (b & 0xffffffffL);
+  }
+}
@@ -0,0 +1,324 @@
+package com.wavefunction;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tiled wave function collapse over a width x height x depth grid of voxels,
+ * with six directions instead of the four of Model.
+ *
+ * State is kept as small as the 3D grids require: the bit-packed Wave, one
+ * flat short counter per (cell, tile, direction), an int stack of cell * T +
+ * tile entries that only grows as needed, and three per-cell sums. The
+ * observation noise is derived from the seed and the cell index instead of
+ * being stored.
+ *
+ * Cells are indexed x + y * width + z * width * height, the layout used by
+ * the marching cubes VoxelGrid.
+ */
+public class VoxelModel {
+  static final int[] DX = { -1, 0, 1, 0, 0, 0 };
+  static final int[] DY = { 0, 1, 0, -1, 0, 0 };
+  static final int[] DZ = { 0, 0, 0, 0, 1, -1 };
+  static final int[] opposite = { 2, 3, 0, 1, 5, 4 };
+
+  private final Ruleset rules;
+  private final int FMX, FMY, FMZ, T;
+  private final boolean periodic;
+
+  private Wave wave;
+  private short[] compatible;
+  // The counters of one voxel, which Clear() copies over the grid.
+  private short[] template;
+  private int[] stack;
+  private int stacksize;
+  private int[] sumsOfOnes;
+  private double[] sumsOfWeights, sumsOfWeightLogWeights;
+  private EntropyHeap heap;
+  private double[] distribution;
+  private Random random;
+  private long noiseSeed;
+  private boolean contradiction;
+  private int[] observed;
+
+  /**
+   * Creates a new voxel model.
+   * @param weights Weight of every tile.
+   * @param propagator For each of the six directions (-x, +y, +x, -y, +z, -z)
+   * and every tile, the tiles allowed next to it. See propagator().
+   * @param width The width of the output, in voxels.
+   * @param height The height of the output, in voxels.
+   * @param depth The depth of the output, in voxels.
+   * @param periodic Whether the output wraps around on all three axes.
+   */
+  public VoxelModel(
+    double[] weights,
+    int[][][] propagator,
+    int width,
+    int height,
+    int depth,
+    boolean periodic
+  ) {
+    this(
+      new Ruleset(
+        VoxelModel.sixDirections(propagator),
+        weights,
+        VoxelModel.opposite
+      ),
+      width,
+      height,
+      depth,
+      periodic
+    );
+  }
+
+  /**
+   * Returns propagator if it has the six directions of a voxel grid, before
+   * the Ruleset indexes them.
+   */
+  private static int[][][] sixDirections(int[][][] propagator) {
+    if (propagator.length != 6) throw new IllegalArgumentException(
+      "A voxel propagator needs 6 directions, got " + propagator.length
+    );
+    return propagator;
+  }
+
+  private VoxelModel(
+    Ruleset rules,
+    int width,
+    int height,
+    int depth,
+    boolean periodic
+  ) {
+    this.rules = rules;
+    this.FMX = width;
+    this.FMY = height;
+    this.FMZ = depth;
+    this.T = rules.T;
+    this.periodic = periodic;
+
+    if (
+      (long) width * height * depth * this.T * 6 > Integer.MAX_VALUE
+    ) throw new IllegalArgumentException("Grid too large for " + this.T + " tiles");
+    for (int c : rules.compatibleTemplate) if (
+      c > Short.MAX_VALUE
+    ) throw new IllegalArgumentException("Too many tiles for short counters");
+  }
+
+  /**
+   * Returns a new model over the same rules with its own state, so several
+   * seeds can run at the same time.
+   */
+  public VoxelModel fork(int width, int height, int depth) {
+    return new VoxelModel(this.rules, width, height, depth, this.periodic);
+  }
+
+  /**
+   * Builds a six-direction propagator from the pairs of tiles allowed to sit
+   * next to each other along each axis.
+   * @param T Number of tiles.
+   * @param x Pairs {a, b} where b may sit at +x of a.
+   * @param y Pairs {a, b} where b may sit at +y of a.
+   * @param z Pairs {a, b} where b may sit at +z of a.
+   */
+  public static int[][][] propagator(int T, int[][] x, int[][] y, int[][] z) {
+    boolean[][][] allowed = new boolean[6][T][T];
+    int[][][] axes = { x, y, z };
+    int[] forward = { 2, 1, 4 };
+
+    for (int axis = 0; axis < 3; axis++) for (int[] pair : axes[axis]) {
+      int d = forward[axis];
+      allowed[d][pair[0]][pair[1]] = true;
+      allowed[VoxelModel.opposite[d]][pair[1]][pair[0]] = true;
+    }
+
+    int[][][] propagator = new int[6][T][];
+    for (int d = 0; d < 6; d++) for (int t1 = 0; t1 < T; t1++) {
+      int count = 0;
+      for (int t2 = 0; t2 < T; t2++) if (allowed[d][t1][t2]) count++;
+      propagator[d][t1] = new int[count];
+      count = 0;
+      for (int t2 = 0; t2 < T; t2++) if (
+        allowed[d][t1][t2]
+      ) propagator[d][t1][count++] = t2;
+    }
+    return propagator;
+  }
+
+  void init() {
+    int length = this.FMX * this.FMY * this.FMZ;
+    this.wave = new Wave(length, this.T);
+    this.compatible = new short[length * this.T * 6];
+    this.template = new short[this.T * 6];
+    for (int k = 0; k < this.template.length; k++) this.template[k] =
+      (short) this.rules.compatibleTemplate[k];
+    this.stack = new int[Math.max(64, length)];
+    this.sumsOfOnes = new int[length];
+    this.sumsOfWeights = new double[length];
+    this.sumsOfWeightLogWeights = new double[length];
+    this.heap = new EntropyHeap(length);
+    this.distribution = new double[this.T];
+  }
+
+  /**
+   * Executes a complete run.
+   * @param seed The seed of the run.
+   * @param limit Maximum number of observations, 0 for no limit.
+   * @return false if the run hit a contradiction.
+   */
+  public boolean run(int seed, int limit) {
+    if (this.wave == null) this.init();
+
+    this.random = new Random(seed);
+    this.noiseSeed = this.random.nextLong();
+    this.Clear();
+
+    for (int l = 0; l < limit || limit == 0; l++) {
+      Boolean result = this.observe();
+      if (result != null) return (boolean) result;
+      this.propagate();
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the tile observed at a voxel by the last completed run, or -1.
+   */
+  public int get(int x, int y, int z) {
+    if (this.observed == null) return -1;
+    return this.observed[x + y * this.FMX + z * this.FMX * this.FMY];
+  }
+
+  /**
+   * Maps the last completed run to a scalar field, in the x + y * width +
+   * z * width * height order of the marching cubes VoxelGrid.
+   * @param values Value of every tile, for instance its density.
+   */
+  public float[] scalarField(float[] values) {
+    float[] field = new float[this.FMX * this.FMY * this.FMZ];
+    if (this.observed != null) for (int i = 0; i < field.length; i++) field[i] =
+      values[this.observed[i]];
+    return field;
+  }
+
+  Boolean observe() {
+    if (this.contradiction) return false;
+
+    int argmin = this.heap.peek();
+    if (argmin == -1) {
+      this.observed = new int[this.wave.length];
+      for (int i = 0; i < this.wave.length; i++) this.observed[i] =
+        Math.max(this.wave.first(i), 0);
+      return true;
+    }
+
+    double[] distribution = this.distribution;
+    for (int t = 0; t < this.T; t++) distribution[t] =
+      this.wave.get(argmin, t) ? this.rules.weights[t] : 0;
+
+    int r = Model.randomIndice(distribution, this.random.nextDouble());
+
+    for (int t = 0; t < this.T; t++) if (
+      this.wave.get(argmin, t) != (t == r)
+    ) this.ban(argmin, t);
+
+    return null;
+  }
+
+  void propagate() {
+    int FMX = this.FMX, FMY = this.FMY, FMZ = this.FMZ, T = this.T;
+    int plane = FMX * FMY;
+
+    while (this.stacksize > 0 && !this.contradiction) {
+      int e1 = this.stack[--this.stacksize];
+      int i1 = e1 / T, t1 = e1 - i1 * T;
+      int x1 = i1 % FMX, y1 = (i1 / FMX) % FMY, z1 = i1 / plane;
+
+      for (int d = 0; d < 6; d++) {
+        int x2 = x1 + DX[d], y2 = y1 + DY[d], z2 = z1 + DZ[d];
+
+        if (x2 < 0 || x2 >= FMX || y2 < 0 || y2 >= FMY || z2 < 0 || z2 >= FMZ) {
+          if (!this.periodic) continue;
+          if (x2 < 0) x2 += FMX; else if (x2 >= FMX) x2 -= FMX;
+          if (y2 < 0) y2 += FMY; else if (y2 >= FMY) y2 -= FMY;
+          if (z2 < 0) z2 += FMZ; else if (z2 >= FMZ) z2 -= FMZ;
+        }
+
+        int i2 = x2 + y2 * FMX + z2 * plane;
+        int[] p = this.rules.propagator[d][t1];
+        int compat = i2 * T * 6 + d;
+
+        for (int l = 0; l < p.length; l++) {
+          int t2 = p[l];
+          if (--this.compatible[compat + t2 * 6] == 0) this.ban(i2, t2);
+        }
+      }
+    }
+  }
+
+  void ban(int i, int t) {
+    this.wave.clear(i, t);
+
+    int comp = (i * this.T + t) * 6;
+    for (int d = 0; d < 6; d++) this.compatible[comp + d] = 0;
+
+    if (this.stacksize == this.stack.length) this.stack =
+      Arrays.copyOf(this.stack, this.stacksize * 2);
+    this.stack[this.stacksize++] = i * this.T + t;
+
+    this.sumsOfOnes[i] -= 1;
+    this.sumsOfWeights[i] -= this.rules.weights[t];
+    this.sumsOfWeightLogWeights[i] -= this.rules.weightLogWeights[t];
+
+    int amount = this.sumsOfOnes[i];
+    if (amount == 0) this.contradiction = true;
+
+    if (amount > 1) {
+      double sum = this.sumsOfWeights[i];
+      double entropy = Math.log(sum) - this.sumsOfWeightLogWeights[i] / sum;
+      this.heap.update(i, entropy + this.noise(i));
+    } else this.heap.remove(i);
+  }
+
+  /**
+   * Small random tie-breaker of cell i for the current run.
+   */
+  private double noise(int i) {
+    long h = (this.noiseSeed + i) * 0x9e3779b97f4a7c15L;
+    h = (h ^ (h >>> 32)) * 0xd6e8feb86659fd93L;
+    return 1e-6 * ((h ^ (h >>> 32)) >>> 11) * 0x1p-53;
+  }
+
+  void Clear() {
+    this.wave.fill();
+
+    short[] template = this.template;
+    System.arraycopy(template, 0, this.compatible, 0, template.length);
+    for (int filled = template.length; filled < this.compatible.length; filled *=
+        2) System.arraycopy(
+        this.compatible,
+        0,
+        this.compatible,
+        filled,
+        Math.min(filled, this.compatible.length - filled)
+      );
+
+    Arrays.fill(this.sumsOfOnes, this.T);
+    Arrays.fill(this.sumsOfWeights, this.rules.sumOfWeights);
+    Arrays.fill(this.sumsOfWeightLogWeights, this.rules.sumOfWeightLogWeights);
+
+    this.contradiction = false;
+    this.stacksize = 0;
+    this.observed = null;
+
+    this.heap.clear();
+    if (this.T > 1) {
+      for (int i = 0; i < this.wave.length; i++) this.heap.append(
+        i,
+        this.rules.startingEntropy + this.noise(i)
+      );
+      this.heap.heapify();
+    }
+  }
+}
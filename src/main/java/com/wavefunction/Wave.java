@@ -0,0 +1,85 @@
+package com.wavefunction;
+
+/**
+ * Bit-packed storage for the possible patterns of every cell of a Model.
+ * Each cell owns a fixed run of longs inside one flat array, so a cell with
+ * T patterns costs (T + 63) / 64 words instead of a boolean[] of its own.
+ */
+final class Wave {
+  public final int length;
+  final int T;
+  final int words;
+  final long[] bits;
+
+  private final long lastMask;
+
+  Wave(int length, int T) {
+    this.length = length;
+    this.T = T;
+    this.words = (T + 63) >>> 6;
+    this.bits = new long[length * this.words];
+    this.lastMask = (T & 63) == 0 ? -1L : (1L << (T & 63)) - 1;
+  }
+
+  boolean get(int i, int t) {
+    return (this.bits[i * this.words + (t >>> 6)] & (1L << t)) != 0;
+  }
+
+  void clear(int i, int t) {
+    this.bits[i * this.words + (t >>> 6)] &= ~(1L << t);
+  }
+
+  void set(int i, int t) {
+    this.bits[i * this.words + (t >>> 6)] |= 1L << t;
+  }
+
+  /**
+   * Returns the number of patterns still allowed in cell i.
+   */
+  int count(int i) {
+    int base = i * this.words, result = 0;
+    for (int w = 0; w < this.words; w++) result +=
+      Long.bitCount(this.bits[base + w]);
+    return result;
+  }
+
+  /**
+   * Returns the first allowed pattern at or after t in cell i, or -1.
+   */
+  int next(int i, int t) {
+    if (t >= this.T) return -1;
+    int base = i * this.words;
+    int w = t >>> 6;
+    long word = this.bits[base + w] & (-1L << t);
+
+    while (true) {
+      if (word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+      if (++w == this.words) return -1;
+      word = this.bits[base + w];
+    }
+  }
+
+  int first(int i) {
+    return this.next(i, 0);
+  }
+
+  /**
+   * Allows every pattern in every cell, one word at a time.
+   */
+  void fill() {
+    if (this.bits.length == 0) return;
+
+    for (int w = 0; w < this.words - 1; w++) this.bits[w] = -1L;
+    this.bits[this.words - 1] = this.lastMask;
+
+    for (int filled = this.words; filled < this.bits.length; filled *= 2) {
+      System.arraycopy(
+        this.bits,
+        0,
+        this.bits,
+        filled,
+        Math.min(filled, this.bits.length - filled)
+      );
+    }
+  }
+}
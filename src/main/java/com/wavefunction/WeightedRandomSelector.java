@@ -0,0 +1,77 @@
+package com.wavefunction;
+
+/**
+ * Heuristic.WEIGHTED_RANDOM: a random undecided cell, with probability
+ * proportional to 1 + the number of patterns it has lost. Weights are kept
+ * in a Fenwick tree, so a ban and a draw both cost O(log cells).
+ */
+final class WeightedRandomSelector implements CellSelector {
+  private final Model model;
+  private final int[] weight;
+  private final long[] tree;
+  private final int top;
+  private long total;
+
+  WeightedRandomSelector(Model model) {
+    this.model = model;
+    this.weight = new int[model.wave.length];
+    this.tree = new long[model.wave.length + 1];
+    this.top = Integer.highestOneBit(model.wave.length);
+  }
+
+  @Override
+  public void clear() {
+    Model model = this.model;
+    int n = model.wave.length;
+    this.total = 0;
+
+    for (int i = 0; i < n; i++) {
+      int amount = model.sumsOfOnes[i];
+      this.weight[i] = amount > 1 &&
+        !model.onBoundary(i % model.FMX, i / model.FMX)
+        ? model.T - amount + 1
+        : 0;
+      this.tree[i + 1] = this.weight[i];
+      this.total += this.weight[i];
+    }
+    for (int k = 1; k <= n; k++) {
+      int parent = k + (k & -k);
+      if (parent <= n) this.tree[parent] += this.tree[k];
+    }
+  }
+
+  @Override
+  public void banned(int i, int t, int amount) {
+    if (this.weight[i] == 0) return;
+    this.set(i, amount > 1 ? this.weight[i] + 1 : 0);
+  }
+
+  @Override
+  public void unbanned(int i, int t, int amount) {
+    Model model = this.model;
+    if (amount < 2 || model.onBoundary(i % model.FMX, i / model.FMX)) return;
+    this.set(i, model.T - amount + 1);
+  }
+
+  @Override
+  public int next() {
+    if (this.total == 0) return -1;
+
+    long r = (long) (this.model.random.nextDouble() * this.total);
+    int k = 0;
+    for (int step = this.top; step > 0; step >>= 1) if (
+      k + step < this.tree.length && this.tree[k + step] <= r
+    ) {
+      k += step;
+      r -= this.tree[k];
+    }
+    return k;
+  }
+
+  private void set(int i, int w) {
+    long delta = w - this.weight[i];
+    this.weight[i] = w;
+    this.total += delta;
+    for (int k = i + 1; k < this.tree.length; k += k & -k) this.tree[k] += delta;
+  }
+}